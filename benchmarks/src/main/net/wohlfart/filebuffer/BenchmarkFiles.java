@@ -0,0 +1,45 @@
+package net.wohlfart.filebuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * temporary cache directories for the benchmarks
+ */
+final class BenchmarkFiles {
+
+	private BenchmarkFiles() {
+		// static helper
+	}
+
+	static File createTempDir(String prefix) {
+		try {
+			return Files.createTempDirectory(prefix).toFile();
+		} catch (IOException ex) {
+			throw new CacheException("can't create a directory", ex);
+		}
+	}
+
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * a factory for the directory, spare files are only prepared if poolSize is above 0
+	 */
+	static PageFactory createPageFactory(File dir, int pageSize, int poolSize) {
+		PageFactory pageFactory = new PageFactory();
+		pageFactory.setCacheDir(dir.getAbsolutePath());
+		pageFactory.setFilesize(pageSize);
+		pageFactory.setPoolSize(poolSize);
+		return pageFactory;
+	}
+
+}
@@ -0,0 +1,155 @@
+package net.wohlfart.filebuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * enqueue with page rollover by a single and by concurrent producers, and the latency
+ * of a consumer tailing a producer, the retention keeps the cache directory small
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+
+	// pages kept on disk by the retention
+	private static final int RETAINED_PAGES = 32;
+
+	@State(Scope.Benchmark)
+	public static class SingleProducer {
+
+		@Param({"65536", "1048576"})
+		int pageSize;
+
+		File dir;
+		PageHandler pageHandler;
+		BufferImpl buffer;
+		final AtomicLong clock = new AtomicLong();
+
+		@Setup(Level.Trial)
+		public void setup() {
+			dir = BenchmarkFiles.createTempDir("buffer-benchmark");
+			pageHandler = new PageHandler();
+			pageHandler.setPageFactory(BenchmarkFiles.createPageFactory(dir, pageSize, 2));
+			pageHandler.setMaxDiskSize((long) RETAINED_PAGES * pageSize);
+			pageHandler.setRetentionIntervalMillis(100);
+			pageHandler.init();
+			buffer = new BufferImpl();
+			buffer.setPageHandler(pageHandler);
+			buffer.setConcurrent(isConcurrent());
+		}
+
+		boolean isConcurrent() {
+			return false;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			buffer.close();
+			pageHandler.close();
+			BenchmarkFiles.delete(dir);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ConcurrentProducers extends SingleProducer {
+
+		@Override
+		boolean isConcurrent() {
+			return true;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Chunk {
+
+		@Param({"100", "1000"})
+		int chunkSize;
+
+		ByteBuffer data;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			data = ByteBuffer.allocate(chunkSize);
+		}
+
+		ByteBuffer next() {
+			data.clear();
+			return data;
+		}
+	}
+
+	/**
+	 * the producer enqueues the next chunk only after the consumer got the previous one,
+	 * so the producer time is the time a chunk takes to the consumer
+	 */
+	@State(Scope.Group)
+	public static class Tailing extends SingleProducer {
+
+		final AtomicLong consumed = new AtomicLong();
+		long produced;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void enqueue(SingleProducer producer, Chunk chunk) {
+		producer.buffer.enqueue(chunk.next(), producer.clock.incrementAndGet());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void concurrentEnqueue(ConcurrentProducers producers, Chunk chunk) {
+		producers.buffer.enqueue(chunk.next(), producers.clock.incrementAndGet());
+	}
+
+	@Benchmark
+	@Group("tailing")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.SampleTime)
+	public void tailingProducer(Tailing tailing, Chunk chunk, Control control) {
+		while (tailing.consumed.get() < tailing.produced && !control.stopMeasurement) {
+			// wait for the consumer
+		}
+		tailing.buffer.enqueue(chunk.next(), tailing.clock.incrementAndGet());
+		tailing.produced++;
+	}
+
+	@Benchmark
+	@Group("tailing")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.SampleTime)
+	public ByteBuffer tailingConsumer(Tailing tailing, Control control) {
+		while (!control.stopMeasurement) {
+			ByteBuffer result = tailing.buffer.dequeue();
+			if (result.hasRemaining()) {
+				tailing.consumed.incrementAndGet();
+				return result;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,106 @@
+package net.wohlfart.filebuffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * write and read of a single page, the write page is replaced when it is full,
+ * the read starts over at the first chunk when the page has been read
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageBenchmark {
+
+	@Param({"16", "256", "4096"})
+	private int chunkSize;
+
+	@Param({"1048576", "16777216"})
+	private int pageSize;
+
+	private File dir;
+	private ByteBuffer chunk;
+	private long timestamp;
+	private int pageCount;
+
+	private PageImpl writePage;
+	private PageImpl readPage;
+	private ByteBuffer view;
+	private int dataStart;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		dir = BenchmarkFiles.createTempDir("page-benchmark");
+		chunk = ByteBuffer.allocateDirect(chunkSize);
+		writePage = createPage();
+
+		readPage = createPage();
+		while (readPage.remainingForWrite() >= chunkSize) {
+			chunk.clear();
+			readPage.write(chunk, timestamp++);
+		}
+		readPage.sealWriteBuffer();
+		readPage.closeWriteBuffer();
+		view = readPage.createReadView(Long.MIN_VALUE);
+		dataStart = view.position();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		writePage.closeWriteBuffer(false);
+		BenchmarkFiles.delete(dir);
+	}
+
+	@Benchmark
+	public void write() {
+		if (writePage.remainingForWrite() < chunkSize) {
+			writePage.closeWriteBuffer(false);
+			writePage.getFile().delete();
+			writePage = createPage();
+		}
+		chunk.clear();
+		writePage.write(chunk, timestamp++);
+	}
+
+	@Benchmark
+	public ByteBuffer read() {
+		if (readPage.isReadComplete(view)) {
+			view.position(dataStart);
+		}
+		return readPage.read(view);
+	}
+
+	@Benchmark
+	public int readInto() {
+		if (readPage.isReadComplete(view)) {
+			view.position(dataStart);
+		}
+		chunk.clear();
+		return readPage.read(view, chunk);
+	}
+
+	private PageImpl createPage() {
+		PageImpl page = new PageImpl(new File(dir, String.valueOf(pageCount++)), pageSize, timestamp);
+		page.createWriteBuffer();
+		return page;
+	}
+
+}
@@ -0,0 +1,90 @@
+package net.wohlfart.filebuffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * startup of a handler with an existing cache directory, with the catalog the pages
+ * are known without reading them, without the catalog every page is read and recovered
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+	@Param({"100", "1000"})
+	private int pages;
+
+	@Param({"65536"})
+	private int pageSize;
+
+	@Param({"true", "false"})
+	private boolean catalog;
+
+	@Param({"false", "true"})
+	private boolean checksums;
+
+	private File dir;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		dir = BenchmarkFiles.createTempDir("startup-benchmark");
+		PageFactory pageFactory = BenchmarkFiles.createPageFactory(dir, pageSize, 0);
+		pageFactory.setChecksums(checksums);
+		PageHandler pageHandler = new PageHandler();
+		pageHandler.setPageFactory(pageFactory);
+		pageHandler.init();
+		ByteBuffer chunk = ByteBuffer.allocate(100);
+		long timestamp = 0;
+		for (int i = 0; i < pages; i++) {
+			IPage page = pageHandler.getWritePage(timestamp);
+			while (page.remainingForWrite() >= chunk.capacity()) {
+				chunk.clear();
+				page.write(chunk, timestamp++);
+			}
+			pageHandler.closeWritePage(page, false);
+		}
+		pageHandler.close();
+	}
+
+	@Setup(Level.Invocation)
+	public void removeCatalog() {
+		if (!catalog) {
+			new File(dir, PageCatalog.CATALOG_FILENAME).delete();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.delete(dir);
+	}
+
+	@Benchmark
+	public PageHandler init() {
+		PageFactory pageFactory = BenchmarkFiles.createPageFactory(dir, pageSize, 0);
+		PageHandler pageHandler = new PageHandler();
+		pageHandler.setPageFactory(pageFactory);
+		pageHandler.init();
+		pageHandler.close();
+		return pageHandler;
+	}
+
+}
@@ -0,0 +1,95 @@
+package net.wohlfart.filebuffer;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * maps the pages as memory segments, a writable mapping has its own shared arena so it is
+ * unmapped when the arena is closed, a thread still using the buffer view of the mapping
+ * gets an IllegalStateException instead of crashing the VM, this doesn't hold for the
+ * ordered accesses of MemoryAccess which use the raw address with Unsafe and are not
+ * checked, the page must not be unmapped while it is still written or its limit read
+ *
+ * read only mappings are in automatic arenas, the chunks handed out to the readers are slices
+ * of the mapping and stay valid as long as the reader keeps them, like with mapped buffers the
+ * garbage collector unmaps them
+ *
+ * the pages work with the byte buffer view of the segment, the limit is published with
+ * the ordered access of MemoryAccess which works on the view like on any direct buffer
+ */
+final class SegmentMapper extends Mapper {
+
+	// guarded by this, the writable segments by their buffer view
+	private final Map<ByteBuffer, Mapping> mappings = new IdentityHashMap<>();
+
+	static boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	MappedByteBuffer map(FileChannel channel, MapMode mode, long offset, int size) throws IOException {
+		if (mode == MapMode.READ_ONLY) {
+			return (MappedByteBuffer) channel.map(mode, offset, size, Arena.ofAuto()).asByteBuffer();
+		}
+		Arena arena = Arena.ofShared();
+		try {
+			MemorySegment segment = channel.map(mode, offset, size, arena);
+			MappedByteBuffer buffer = (MappedByteBuffer) segment.asByteBuffer();
+			synchronized (this) {
+				mappings.put(buffer, new Mapping(arena, segment));
+			}
+			return buffer;
+		} catch (IOException | RuntimeException ex) {
+			arena.close();
+			throw ex;
+		}
+	}
+
+	// the buffer view has no file descriptor, its force() does nothing
+	@Override
+	void force(MappedByteBuffer buffer) {
+		mapping(buffer).segment.force();
+	}
+
+	// read only mappings are left to the garbage collector
+	@Override
+	void unmap(ByteBuffer buffer) {
+		if (buffer.isReadOnly()) {
+			return;
+		}
+		Mapping mapping;
+		synchronized (this) {
+			mapping = mappings.remove(buffer);
+		}
+		if (mapping == null) {
+			throw new CacheException("buffer is not mapped as a segment or already unmapped");
+		}
+		mapping.arena.close();
+	}
+
+	private synchronized Mapping mapping(ByteBuffer buffer) {
+		Mapping mapping = mappings.get(buffer);
+		if (mapping == null) {
+			throw new CacheException("buffer is not mapped as a segment or already unmapped");
+		}
+		return mapping;
+	}
+
+	private static class Mapping {
+		final Arena arena;
+		final MemorySegment segment;
+
+		Mapping(Arena arena, MemorySegment segment) {
+			this.arena = arena;
+			this.segment = segment;
+		}
+	}
+
+}
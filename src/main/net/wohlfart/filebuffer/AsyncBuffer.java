@@ -0,0 +1,349 @@
+package net.wohlfart.filebuffer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * a non blocking facade of a buffer, readers get a future or a subscription instead of
+ * waiting in a thread, so any number of readers can wait without holding a thread
+ *
+ * the waiting readers are served by a task on the executor, the task is started when a
+ * chunk is enqueued through this facade and by a poller that picks up chunks written around
+ * this facade, the poller only runs while there is a waiting future or a subscriber with
+ * demand, one task at a time serves the readers without taking a lock, the futures and
+ * subscribers are completed in that task and never in the enqueueing thread, they should hand
+ * longer work to their own executor
+ *
+ * the enqueueing threads must follow the rules of the buffer, more than one producer needs
+ * a concurrent buffer
+ */
+public class AsyncBuffer implements Closeable {
+
+	private static final long DEFAULT_POLL_INTERVAL_MILLIS = 10;
+
+	private final IBuffer buffer;
+	private long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+	private Executor executor = ForkJoinPool.commonPool();
+
+	private final Queue<CompletableFuture<ByteBuffer>> waiters = new ConcurrentLinkedQueue<>();
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	// the number of drain requests, only the thread that raised it from zero drains
+	private final AtomicInteger drainRequests = new AtomicInteger();
+	// a chunk that was dequeued for a waiter that was cancelled, only used by the draining thread
+	private ByteBuffer unclaimed;
+	private final AtomicReference<ScheduledExecutorService> poller = new AtomicReference<>();
+	private volatile boolean closed;
+
+	public AsyncBuffer(IBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * how often chunks that were not enqueued through this facade are looked for while
+	 * a reader waits
+	 */
+	public void setPollIntervalMillis(long pollIntervalMillis) {
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	/**
+	 * runs the task that completes the futures and calls the subscribers, the common pool
+	 * by default, if the executor rejects the task it runs in the calling thread
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * enqueue the chunk, the returned future is complete when the chunk is committed
+	 */
+	public CompletableFuture<Void> enqueueAsync(ByteBuffer chunk, long timestamp) {
+		return enqueueAsync(chunk, timestamp, false);
+	}
+
+	/**
+	 * enqueue the chunk, if durable the returned future completes when the chunk is on disk,
+	 * with the periodic or group commit policy the enqueueing thread doesn't wait for the force
+	 */
+	public CompletableFuture<Void> enqueueAsync(ByteBuffer chunk, long timestamp, boolean durable) {
+		try {
+			buffer.enqueue(chunk, timestamp);
+		} catch (CacheException ex) {
+			return failed(ex);
+		}
+		drain();
+		return durable ? buffer.sync() : CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * a future of the next chunk, the futures complete in the order of the calls,
+	 * a cancelled future doesn't take a chunk
+	 */
+	public CompletableFuture<ByteBuffer> dequeueAsync() {
+		if (closed) {
+			return failed(new CacheException("buffer is closed"));
+		}
+		CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+		waiters.add(result);
+		startPoller();
+		drain();
+		return result;
+	}
+
+	/**
+	 * pass the chunks of the cursor to onNext as requested, the chunk is a view that is only
+	 * valid in onNext, the subscription owns the cursor, onError is called once and ends
+	 * the subscription
+	 */
+	public ISubscription subscribe(ICursor cursor, Consumer<? super ByteBuffer> onNext,
+			Consumer<? super Throwable> onError) {
+		if (closed) {
+			throw new CacheException("buffer is closed");
+		}
+		Subscription subscription = new Subscription(cursor, onNext, onError);
+		subscriptions.add(subscription);
+		startPoller();
+		return subscription;
+	}
+
+	/**
+	 * stop the poller, the waiting futures fail and the subscriptions are cancelled,
+	 * the buffer is not closed
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ScheduledExecutorService localPoller = poller.getAndSet(null);
+		if (localPoller != null) {
+			localPoller.shutdown();
+		}
+		for (Subscription subscription : subscriptions) {
+			subscription.cancel();
+		}
+		drain();
+	}
+
+	// true while the poller runs
+	boolean isPolling() {
+		return poller.get() != null;
+	}
+
+	// no monitor is held so a virtual thread is never pinned here
+	private void startPoller() {
+		if (poller.get() != null) {
+			return;
+		}
+		ScheduledExecutorService localPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "async-buffer-poller");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (closed || !poller.compareAndSet(null, localPoller)) {
+			localPoller.shutdown();
+			return;
+		}
+		localPoller.scheduleWithFixedDelay(() -> poll(localPoller), pollIntervalMillis, pollIntervalMillis,
+				TimeUnit.MILLISECONDS);
+		if (closed && poller.compareAndSet(localPoller, null)) {
+			localPoller.shutdown();
+		}
+	}
+
+	// the poller stops itself when no reader waits, a reader that came in while it stopped
+	// either saw no poller and started a new one or is seen by the second check
+	private void poll(ScheduledExecutorService localPoller) {
+		if (!idle()) {
+			drain();
+			return;
+		}
+		if (poller.compareAndSet(localPoller, null)) {
+			localPoller.shutdown();
+			if (!idle()) {
+				startPoller();
+			}
+		}
+	}
+
+	private boolean idle() {
+		if (!waiters.isEmpty()) {
+			return false;
+		}
+		for (Subscription subscription : subscriptions) {
+			if (subscription.isWaiting()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// start serving the readers, a request during a drain makes the draining task repeat
+	private void drain() {
+		if (drainRequests.getAndIncrement() != 0) {
+			return;
+		}
+		try {
+			executor.execute(this::serve);
+		} catch (RejectedExecutionException ex) {
+			serve();
+		}
+	}
+
+	private void serve() {
+		int missed = 1;
+		do {
+			if (closed) {
+				failWaiters();
+			} else {
+				completeWaiters();
+			}
+			for (Subscription subscription : subscriptions) {
+				subscription.drain();
+			}
+			missed = drainRequests.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void completeWaiters() {
+		while (!waiters.isEmpty()) {
+			ByteBuffer chunk = unclaimed;
+			if (chunk == null) {
+				try {
+					chunk = buffer.dequeue();
+				} catch (RuntimeException ex) {
+					// only the reader that would get the chunk fails, the next one tries again
+					failWaiter(ex);
+					continue;
+				}
+				if (!chunk.hasRemaining()) {
+					return;
+				}
+			}
+			unclaimed = chunk;
+			CompletableFuture<ByteBuffer> waiter;
+			while ((waiter = waiters.poll()) != null) {
+				if (waiter.complete(chunk)) {
+					unclaimed = null;
+					break;
+				}
+			}
+		}
+	}
+
+	private void failWaiters() {
+		failWaiters(new CacheException("buffer is closed"));
+	}
+
+	private void failWaiters(Throwable cause) {
+		CompletableFuture<ByteBuffer> waiter;
+		while ((waiter = waiters.poll()) != null) {
+			waiter.completeExceptionally(cause);
+		}
+	}
+
+	// the first waiter that isn't cancelled
+	private void failWaiter(Throwable cause) {
+		CompletableFuture<ByteBuffer> waiter;
+		while ((waiter = waiters.poll()) != null) {
+			if (waiter.completeExceptionally(cause)) {
+				return;
+			}
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable cause) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		result.completeExceptionally(cause);
+		return result;
+	}
+
+	/**
+	 * the demand and the cursor of a subscriber, only used by the draining thread
+	 * except for the demand and the cancel flag
+	 */
+	private class Subscription implements ISubscription {
+
+		private final ICursor cursor;
+		private final Consumer<? super ByteBuffer> onNext;
+		private final Consumer<? super Throwable> onError;
+		private final AtomicLong demand = new AtomicLong();
+		private volatile boolean cancelled;
+
+		Subscription(ICursor cursor, Consumer<? super ByteBuffer> onNext, Consumer<? super Throwable> onError) {
+			this.cursor = cursor;
+			this.onNext = onNext;
+			this.onError = onError;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("the request must be positive, got " + n));
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = demand.get();
+				next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			} while (!demand.compareAndSet(current, next));
+			startPoller();
+			AsyncBuffer.this.drain();
+		}
+
+		boolean isWaiting() {
+			return !cancelled && demand.get() > 0;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			AsyncBuffer.this.drain();
+		}
+
+		void drain() {
+			try {
+				while (!cancelled && demand.get() > 0) {
+					ByteBuffer chunk = cursor.dequeueView();
+					if (!chunk.hasRemaining()) {
+						break;
+					}
+					demand.decrementAndGet();
+					onNext.accept(chunk);
+				}
+			} catch (RuntimeException ex) {
+				cancelled = true;
+				try {
+					onError.accept(ex);
+				} catch (RuntimeException ignored) {
+					// the subscription ends anyways, the other readers are still served
+				}
+			}
+			if (cancelled && subscriptions.remove(this)) {
+				cursor.close();
+			}
+		}
+
+		private void fail(Throwable cause) {
+			cancelled = true;
+			onError.accept(cause);
+			AsyncBuffer.this.drain();
+		}
+
+	}
+
+}
@@ -0,0 +1,170 @@
+package net.wohlfart.filebuffer;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * the read side of compressed pages, a block is decompressed when the first chunk
+ * of the block is read, the chunks are read from the decompressed block like from a page
+ */
+class BlockReader {
+
+	private final Inflater inflater = new Inflater(true);
+
+	private ByteBuffer block = ByteBuffer.allocate(0);
+	private ByteBuffer chunkView = block.duplicate();
+	private byte[] input = new byte[0];
+
+	/**
+	 * true if there are chunks left in the current block
+	 */
+	boolean hasRemaining() {
+		return block.hasRemaining();
+	}
+
+	/**
+	 * the read position in the current block
+	 */
+	int position() {
+		return block.position();
+	}
+
+	void position(int position) {
+		block.position(position);
+	}
+
+	/**
+	 * decompress the record of a block, the record's position and limit are the block
+	 */
+	void load(ByteBuffer record) {
+		int start = record.position();
+		int rawSize = record.getInt(start);
+		int codec = record.getInt(start + PageImpl.INT_SIZE);
+		int dataSize = record.remaining() - BlockWriter.BLOCK_HEADER_SIZE;
+		if (block.capacity() < rawSize) {
+			block = ByteBuffer.allocate(rawSize);
+			chunkView = block.duplicate();
+		}
+		block.clear();
+		try {
+			if (codec == BlockWriter.STORED) {
+				record.position(start + BlockWriter.BLOCK_HEADER_SIZE);
+				block.put(record);
+			} else if (codec == BlockWriter.DEFLATED) {
+				if (input.length < dataSize) {
+					input = new byte[dataSize];
+				}
+				record.position(start + BlockWriter.BLOCK_HEADER_SIZE);
+				record.get(input, 0, dataSize);
+				inflater.reset();
+				inflater.setInput(input, 0, dataSize);
+				int size = 0;
+				while (size < rawSize && !inflater.finished()) {
+					int inflated = inflater.inflate(block.array(), block.arrayOffset() + size, rawSize - size);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					size += inflated;
+				}
+				if (size != rawSize) {
+					throw new CacheException("broken block, expected " + rawSize + " bytes but got " + size);
+				}
+			} else {
+				throw new CacheException("unknown block codec " + codec);
+			}
+		} catch (DataFormatException ex) {
+			throw new CacheException("broken block", ex);
+		} finally {
+			record.position(start);
+		}
+		block.position(0);
+		block.limit(rawSize);
+	}
+
+	/**
+	 * the size of the next chunk
+	 */
+	int nextSize() {
+		return block.getInt(block.position());
+	}
+
+	/**
+	 * forget the current block
+	 */
+	void clear() {
+		block.position(0);
+		block.limit(0);
+	}
+
+	/**
+	 * a copy of the next chunk, the block is reused for the next block
+	 */
+	ByteBuffer read() {
+		int chunkSize = block.getInt();
+		ByteBuffer result = ByteBuffer.allocate(chunkSize);
+		block.get(result.array(), 0, chunkSize);
+		return result;
+	}
+
+	/**
+	 * copy the next chunk into target, a chunk that doesn't fit is not consumed and ~size
+	 * is returned
+	 */
+	int read(ByteBuffer target) {
+		int position = block.position();
+		int chunkSize = block.getInt(position);
+		if (chunkSize > target.remaining()) {
+			return ~chunkSize;
+		}
+		int end = block.limit();
+		block.position(position + PageImpl.INT_SIZE);
+		block.limit(position + PageImpl.INT_SIZE + chunkSize);
+		target.put(block);
+		block.limit(end);
+		return chunkSize;
+	}
+
+	/**
+	 * the next chunk in a view that is reused for all chunks
+	 */
+	ByteBuffer nextView() {
+		int position = block.position();
+		int chunkSize = block.getInt(position);
+		int end = position + PageImpl.INT_SIZE + chunkSize;
+		chunkView.limit(end);
+		chunkView.position(position + PageImpl.INT_SIZE);
+		block.position(end);
+		return chunkView;
+	}
+
+	/**
+	 * the next chunk with its size in front, as it is stored in an uncompressed page
+	 */
+	ByteBuffer nextRecord() {
+		int position = block.position();
+		int end = position + PageImpl.INT_SIZE + block.getInt(position);
+		chunkView.limit(end);
+		chunkView.position(position);
+		block.position(end);
+		return chunkView;
+	}
+
+	/**
+	 * pass up to max chunks of the current block to the consumer
+	 */
+	int read(int max, Consumer<? super ByteBuffer> consumer) {
+		int count = 0;
+		while (count < max && block.hasRemaining()) {
+			consumer.accept(read());
+			count++;
+		}
+		return count;
+	}
+
+	void close() {
+		inflater.end();
+	}
+
+}
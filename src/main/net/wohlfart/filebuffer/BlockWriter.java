@@ -0,0 +1,123 @@
+package net.wohlfart.filebuffer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * collects chunks in the page format into a block and compresses the block,
+ * a compressed record is:
+ *    raw size, codec, compressed data
+ * if the data doesn't compress the block is stored as it is, so a record is never
+ * bigger than the raw block and its header
+ */
+class BlockWriter {
+
+	static final int BLOCK_HEADER_SIZE = PageImpl.INT_SIZE + PageImpl.INT_SIZE;
+	static final int STORED = 0;
+	static final int DEFLATED = 1;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final int blockSize;
+
+	private ByteBuffer block;
+	private byte[] output;
+	private boolean indexed;
+	private long firstTimestamp;
+
+	BlockWriter(int blockSize) {
+		this.blockSize = blockSize;
+		this.block = ByteBuffer.allocate(blockSize);
+		this.output = new byte[BLOCK_HEADER_SIZE + blockSize];
+	}
+
+	/**
+	 * bytes in the block so far
+	 */
+	int size() {
+		return block.position();
+	}
+
+	boolean isEmpty() {
+		return block.position() == 0;
+	}
+
+	/**
+	 * true if the chunk fits into the block, an empty block takes any chunk
+	 */
+	boolean fits(int chunkSize) {
+		return isEmpty() || block.position() + PageImpl.INT_SIZE + chunkSize <= blockSize;
+	}
+
+	/**
+	 * the timestamp of the first indexed chunk in the block
+	 */
+	boolean isIndexed() {
+		return indexed;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	void add(ByteBuffer chunk, long timestamp, boolean indexed) {
+		int chunkSize = chunk.remaining();
+		if (block.remaining() < PageImpl.INT_SIZE + chunkSize) {
+			// a single chunk larger than the block size
+			ByteBuffer larger = ByteBuffer.allocate(block.position() + PageImpl.INT_SIZE + chunkSize);
+			block.flip();
+			larger.put(block);
+			block = larger;
+		}
+		if (indexed && !this.indexed) {
+			this.indexed = true;
+			this.firstTimestamp = timestamp;
+		}
+		block.putInt(chunkSize);
+		block.put(chunk);
+	}
+
+	/**
+	 * compress the block into a record and start a new block, the returned buffer
+	 * is only valid until the next call
+	 */
+	ByteBuffer compress() {
+		int rawSize = block.position();
+		if (output.length < BLOCK_HEADER_SIZE + rawSize) {
+			output = new byte[BLOCK_HEADER_SIZE + rawSize];
+		}
+		deflater.reset();
+		deflater.setInput(block.array(), block.arrayOffset(), rawSize);
+		deflater.finish();
+		int compressedSize = 0;
+		int limit = output.length - BLOCK_HEADER_SIZE;
+		while (!deflater.finished() && compressedSize < limit) {
+			compressedSize += deflater.deflate(output, BLOCK_HEADER_SIZE + compressedSize, limit - compressedSize);
+		}
+		ByteBuffer record = ByteBuffer.wrap(output);
+		record.putInt(0, rawSize);
+		if (deflater.finished() && compressedSize < rawSize) {
+			record.putInt(PageImpl.INT_SIZE, DEFLATED);
+			record.limit(BLOCK_HEADER_SIZE + compressedSize);
+		} else {
+			record.putInt(PageImpl.INT_SIZE, STORED);
+			System.arraycopy(block.array(), block.arrayOffset(), output, BLOCK_HEADER_SIZE, rawSize);
+			record.limit(BLOCK_HEADER_SIZE + rawSize);
+		}
+		reset();
+		return record;
+	}
+
+	private void reset() {
+		if (block.capacity() > blockSize) {
+			block = ByteBuffer.allocate(blockSize);
+		}
+		block.clear();
+		indexed = false;
+		firstTimestamp = 0;
+	}
+
+	void close() {
+		deflater.end();
+	}
+
+}
@@ -4,35 +4,272 @@ package net.wohlfart.filebuffer;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * by default enqueue must be called from a single thread, in concurrent mode
+ * multiple producers can enqueue in parallel, each chunk reserves its own region
+ * in the current page and only page rollover is serialized
+ *
+ * the durability policy decides when the pages are forced to disk, with the periodic and
+ * the group commit policy a background thread forces the current write page
+ */
 public class BufferImpl implements IBuffer, Closeable {
 
     private IPageHandler pageHandler;
     
-	private long firstReadTimestamp;
-	
-	IPage readPage;
-	IPage writePage;
+	private ICursor reader;
+
+	volatile IPage writePage;
+
+	private boolean concurrent;
+	private WaitStrategy waitStrategy = WaitStrategy.BACKOFF;
+
+	private DurabilityPolicy durabilityPolicy = DurabilityPolicy.PAGE;
+	private long forceIntervalMillis = 1000;
+	private long forceIntervalBytes = 0;
+	private volatile PageFlusher flusher;
+	private final Lock rolloverLock = new ReentrantLock();
+	private IMetrics metrics = IMetrics.NONE;
 
     public void setPageHandler(IPageHandler pageHandler) {
         this.pageHandler = pageHandler;
     }
 
+    /**
+     * name of the reader, dequeue resumes where the last reader with this name stopped
+     * and the pages are kept for the retention until they are read, call after setPageHandler
+     */
+    public void setConsumer(String consumer) {
+        if (reader != null) {
+            reader.close();
+        }
+        reader = pageHandler.openCursor(consumer);
+    }
+
+    /**
+     * how dequeue with a timeout waits for the writer
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * when to force the written data to disk, default is when a page is closed
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        this.durabilityPolicy = durabilityPolicy;
+    }
+
+    /**
+     * for the periodic policy, force every few milliseconds, 0 to only use the byte interval
+     */
+    public void setForceIntervalMillis(long forceIntervalMillis) {
+        this.forceIntervalMillis = forceIntervalMillis;
+    }
+
+    /**
+     * for the periodic policy, force after this number of bytes, 0 to only use the time interval
+     */
+    public void setForceIntervalBytes(long forceIntervalBytes) {
+        this.forceIntervalBytes = forceIntervalBytes;
+    }
+
+    /**
+     * receives the enqueued and dequeued chunks, use the same metrics for the page handler
+     */
+    public void setMetrics(IMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * allow multiple threads to call enqueue
+     */
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
     /**
      * persist the ByteBuffer, this will modify the position in chunk
      */
     @Override
     public void enqueue(ByteBuffer chunk, long timestamp) throws CacheException {
+    	final int size = chunk.limit() - chunk.position();
+    	if (durabilityPolicy == DurabilityPolicy.PERIODIC) {
+    		flusher().written(size);
+    	}
+    	if (concurrent) {
+    		offer(chunk, timestamp);
+    		metrics.enqueued(1, size);
+    		return;
+    	}
+    	write(chunk, timestamp);
+    	metrics.enqueued(1, size);
+    }
+
+    /**
+     * single writer append, a full page is closed and the next one is checked against
+     * the timestamp of the chunk
+     */
+    private void write(ByteBuffer chunk, long timestamp) {
+    	final int size = chunk.limit() - chunk.position();
+    	if (writePage != null && writePage.remainingForWrite() < size) {
+    		pageHandler.closeWritePage(writePage, durabilityPolicy != DurabilityPolicy.NONE);
+    		writePage = null;
+    	}
     	if (writePage == null) {
     		writePage = pageHandler.getWritePage(timestamp);
-        	assert writePage.remainingForWrite() > (chunk.limit() - chunk.position()) : "chunk is too big for new page";
     	}
-    	if (writePage.remainingForWrite() < (chunk.limit() - chunk.position())) {
-    		pageHandler.closeWritePage(writePage);
-    		writePage = pageHandler.getWritePage(timestamp);
-        	assert writePage.remainingForWrite() > (chunk.limit() - chunk.position()) : "chunk is too big for new page";
+    	if (writePage.remainingForWrite() < size) {
+    		writePage = enqueueFragments(writePage, chunk, timestamp);
+    	} else {
+    		writePage.write(chunk, timestamp);
+    	}
+    }
+
+    /**
+     * a chunk larger than a fresh page is split into fragments on consecutive pages,
+     * returns the page with the last fragment
+     */
+    private IPage enqueueFragments(IPage page, ByteBuffer chunk, long timestamp) {
+    	if (page.isCompressed()) {
+    		throw new CacheException("chunk is too big for a compressed page");
+    	}
+    	boolean first = true;
+    	for (;;) {
+    		page.writeFragment(chunk, timestamp, first);
+    		first = false;
+    		if (!chunk.hasRemaining()) {
+    			return page;
+    		}
+    		pageHandler.closeWritePage(page, durabilityPolicy != DurabilityPolicy.NONE);
+    		page = pageHandler.getWritePage(timestamp);
+    	}
+    }
+
+    /**
+     * persist multiple chunks, the chunks are written page by page,
+     * this will modify the positions in the chunks
+     */
+    @Override
+    public void enqueueBatch(ByteBuffer[] chunks, long[] timestamps) throws CacheException {
+    	if (chunks.length != timestamps.length) {
+    		throw new CacheException("got " + chunks.length + " chunks but " + timestamps.length + " timestamps");
+    	}
+    	long bytes = 0;
+    	if (durabilityPolicy == DurabilityPolicy.PERIODIC || metrics != IMetrics.NONE) {
+    		for (ByteBuffer chunk : chunks) {
+    			bytes += chunk.limit() - chunk.position();
+    		}
+    	}
+    	if (durabilityPolicy == DurabilityPolicy.PERIODIC) {
+    		flusher().written(bytes);
+    	}
+    	int offset = 0;
+    	while (offset < chunks.length) {
+    		IPage page = writePage;
+    		int count = 0;
+    		if (page != null) {
+    			count = concurrent
+    					? page.offer(chunks, timestamps, offset, chunks.length - offset)
+    					: page.write(chunks, timestamps, offset, chunks.length - offset);
+    		}
+    		if (count == 0 && !concurrent) {
+    			// the same page change as enqueue, the order of the batch is checked
+    			write(chunks[offset], timestamps[offset]);
+    			count = 1;
+    		} else if (count == 0 && rollover(page, chunks[offset], timestamps[offset]) == null) {
+    			// the chunk was stored as fragments
+    			count = 1;
+    		}
+    		offset += count;
+    	}
+    	metrics.enqueued(chunks.length, bytes);
+    }
+
+    /**
+     * with the periodic or group commit policy the returned future completes with the next
+     * force of the background thread, otherwise the current page is forced right away
+     */
+    @Override
+    public CompletableFuture<Void> sync() throws CacheException {
+    	if (durabilityPolicy == DurabilityPolicy.PERIODIC
+    			|| durabilityPolicy == DurabilityPolicy.GROUP_COMMIT) {
+    		return flusher().sync();
+    	}
+    	IPage page = writePage;
+    	if (page != null) {
+    		page.forceWriteBuffer();
+    	}
+    	return CompletableFuture.completedFuture(null);
+    }
+
+    private PageFlusher flusher() {
+    	PageFlusher localFlusher = flusher;
+    	if (localFlusher == null) {
+    		synchronized (this) {
+    			localFlusher = flusher;
+    			if (localFlusher == null) {
+    				if (durabilityPolicy == DurabilityPolicy.PERIODIC
+    						&& forceIntervalMillis <= 0 && forceIntervalBytes <= 0) {
+    					throw new CacheException("periodic durability needs a time or a byte interval");
+    				}
+    				localFlusher = new PageFlusher(() -> writePage,
+    						durabilityPolicy, forceIntervalMillis, forceIntervalBytes);
+    				localFlusher.start();
+    				flusher = localFlusher;
+    			}
+    		}
+    	}
+    	return localFlusher;
+    }
+
+    private void offer(ByteBuffer chunk, long timestamp) {
+    	IPage page = writePage;
+    	while (page == null || !page.offer(chunk, timestamp)) {
+    		page = rollover(page, chunk, timestamp);
+    		if (page == null) {
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * replace the full page, only the first thread that finds the page full
+     * closes it, the others get the new page, a chunk that is too big for the new page
+     * is written as fragments before the other threads see the page and null is returned
+     */
+    private IPage rollover(IPage fullPage, ByteBuffer chunk, long timestamp) {
+    	rolloverLock.lock();
+    	try {
+    		IPage page = writePage;
+    		if (page != fullPage) {
+    			return page;
+    		}
+    		if (page != null) {
+    			pageHandler.closeWritePage(page, durabilityPolicy != DurabilityPolicy.NONE);
+    			// concurrent producers are not strictly ordered, the new page must not start before the last one ends,
+    			// the last timestamp is final once the writers still copying into the page are done
+    			timestamp = Math.max(timestamp, page.getLastTimestamp());
+    		}
+    		page = pageHandler.getWritePage(timestamp);
+    		if (page.remainingForWrite() < (chunk.limit() - chunk.position())) {
+    			writePage = enqueueFragments(page, chunk, timestamp);
+    			return null;
+    		}
+    		writePage = page;
+    		return page;
+    	} finally {
+    		rolloverLock.unlock();
     	}
-    	writePage.write(chunk);
     }
 
     /**
@@ -40,30 +277,159 @@ public class BufferImpl implements IBuffer, Closeable {
      */
     @Override
     public void setReadStart(long firstReadTimestamp) throws CacheException {
-        this.firstReadTimestamp = firstReadTimestamp; 
+    	reader().setReadStart(firstReadTimestamp);
     }
 
+    /**
+     * returns the next chunk or an empty buffer if there is no more data yet
+     */
     @Override
     public ByteBuffer dequeue() throws CacheException {
-    	if (readPage == null) {
-    		readPage = pageHandler.getReadPage(firstReadTimestamp);
+    	ByteBuffer result = reader().dequeue();
+    	if (result.hasRemaining()) {
+    		metrics.dequeued(1);
+    	}
+    	return result;
+    }
+
+    /**
+     * copies the next chunk into target, returns the size of the chunk or NO_DATA,
+     * nothing is allocated while reading from the same page, a chunk that doesn't fit
+     * stays and ~size is returned
+     */
+    @Override
+    public int dequeue(ByteBuffer target) throws CacheException {
+    	int result = reader().dequeue(target);
+    	if (result >= 0) {
+    		metrics.dequeued(1);
+    	}
+    	return result;
+    }
+
+    /**
+     * returns the next chunk in a view that is reused by the next call, empty if there is no data
+     */
+    @Override
+    public ByteBuffer dequeueView() throws CacheException {
+    	ByteBuffer result = reader().dequeueView();
+    	if (result.hasRemaining()) {
+    		metrics.dequeued(1);
+    	}
+    	return result;
+    }
+
+    /**
+     * passes up to max chunks to the consumer, the chunks are read page by page,
+     * returns the number of chunks
+     */
+    @Override
+    public int dequeue(int max, Consumer<? super ByteBuffer> consumer) throws CacheException {
+    	int result = reader().dequeue(max, consumer);
+    	metrics.dequeued(result);
+    	return result;
+    }
+
+    /**
+     * passes the next chunk to the consumer, a chunk that was too big for a page in fragments,
+     * returns the number of bytes or NO_DATA
+     */
+    @Override
+    public long dequeueFragments(BiConsumer<? super ByteBuffer, Boolean> consumer) throws CacheException {
+    	long result = reader().dequeueFragments(consumer);
+    	if (result != NO_DATA) {
+    		metrics.dequeued(1);
     	}
-    	if (readPage.isReadComplete()) {
-    		pageHandler.closeReadPage(readPage);
-    		readPage = pageHandler.getNextReadPage(readPage);
+    	return result;
+    }
+
+    @Override
+    public int drainTo(final ByteBuffer[] chunks) throws CacheException {
+    	final int[] count = new int[1];
+    	return dequeue(chunks.length, chunk -> chunks[count[0]++] = chunk);
+    }
+
+    /**
+     * sends the payloads of the next chunks to target with FileChannel.transferTo,
+     * at least one chunk is sent if there is one, returns the number of bytes
+     */
+    @Override
+    public long dequeueTo(WritableByteChannel target, long maxBytes) throws CacheException {
+    	return reader().dequeueTo(target, maxBytes, false);
+    }
+
+    /**
+     * in framed mode the records are sent as stored in the page, each payload follows its int size
+     */
+    @Override
+    public long dequeueTo(WritableByteChannel target, long maxBytes, boolean framed) throws CacheException {
+    	return reader().dequeueTo(target, maxBytes, framed);
+    }
+
+    /**
+     * a parallel stream of copies of the chunks in the time range, the stream is split at page
+     * boundaries and every page is mapped by the thread that reads it, the range is taken from
+     * the pages at the start, close the stream when it is not read to the end
+     */
+    @Override
+    public Stream<ByteBuffer> scan(long fromTimestamp, long toTimestamp) throws CacheException {
+    	PageSpliterator pages = new PageSpliterator(pageHandler,
+    			pageHandler.getPages(fromTimestamp, toTimestamp), fromTimestamp, toTimestamp);
+    	return StreamSupport.stream(pages, true).onClose(pages::closeAll);
+    }
+
+    /**
+     * an additional reader with its own persisted position
+     */
+    @Override
+    public ICursor openCursor(String name) throws CacheException {
+    	return pageHandler.openCursor(name);
+    }
+
+    // the reader for dequeue, not persisted unless a consumer name is set
+    private ICursor reader() {
+    	if (reader == null) {
+    		reader = new CursorImpl(pageHandler);
+    	}
+    	return reader;
+    }
+
+    /**
+     * tail the buffer, returns as soon as the writer committed the next chunk,
+     * returns an empty buffer when the timeout expired or the thread was interrupted
+     */
+    @Override
+    public ByteBuffer dequeue(long timeout, TimeUnit unit) throws CacheException {
+    	final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    	int round = 0;
+    	for (;;) {
+    		ByteBuffer chunk = dequeue();
+    		if (chunk.hasRemaining()
+    				|| System.nanoTime() - deadline >= 0
+    				|| Thread.currentThread().isInterrupted()) {
+    			return chunk;
+    		}
+    		waitStrategy.idle(round++);
     	}
-    	return readPage.read();
     }
 
 	@Override
 	public void close() throws IOException {
-    	if (readPage != null) {
-    		pageHandler.closeReadPage(readPage);
+    	if (reader != null) {
+    		reader.close();
+    	}
+    	PageFlusher localFlusher = flusher;
+    	if (localFlusher != null) {
+    		localFlusher.close();
     	}
-    	if (writePage != null) {
-    		pageHandler.closeWritePage(writePage);
+    	rolloverLock.lock();
+    	try {
+    		if (writePage != null) {
+    			pageHandler.closeWritePage(writePage, durabilityPolicy != DurabilityPolicy.NONE);
+    			writePage = null;
+    		}
+    	} finally {
+    		rolloverLock.unlock();
     	}
-		
 	}
 
 }
@@ -0,0 +1,168 @@
+package net.wohlfart.filebuffer;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * collects the events in striped counters so producers on different threads don't contend,
+ * the values are summed up when they are read, attach the same instance to the buffer
+ * and the page handler and register it to see the values in JMX
+ */
+public class BufferMetrics implements IMetrics, BufferMetricsMBean {
+
+	static final String DOMAIN = "net.wohlfart.filebuffer";
+
+	private final LongAdder enqueuedChunks = new LongAdder();
+	private final LongAdder enqueuedBytes = new LongAdder();
+	private final LongAdder dequeuedChunks = new LongAdder();
+	private final LongAdder createdPages = new LongAdder();
+	private final LongAdder evictedPages = new LongAdder();
+	private final LatencyHistogram forceLatency = new LatencyHistogram();
+	private final Map<String, Integer> consumerLag = new ConcurrentHashMap<>();
+
+	private ObjectName objectName;
+
+	@Override
+	public void enqueued(int chunks, long bytes) {
+		enqueuedChunks.add(chunks);
+		enqueuedBytes.add(bytes);
+	}
+
+	@Override
+	public void dequeued(int chunks) {
+		dequeuedChunks.add(chunks);
+	}
+
+	@Override
+	public void pageCreated() {
+		createdPages.increment();
+	}
+
+	@Override
+	public void pagesEvicted(int pages) {
+		evictedPages.add(pages);
+	}
+
+	@Override
+	public void forced(long nanos) {
+		forceLatency.record(nanos);
+	}
+
+	@Override
+	public void consumerLag(String consumer, int pages) {
+		consumerLag.put(consumer, pages);
+	}
+
+	@Override
+	public void consumerRemoved(String consumer) {
+		consumerLag.remove(consumer);
+	}
+
+	/**
+	 * register as MBean in the platform server with the given name
+	 */
+	public synchronized void register(String name) {
+		try {
+			ObjectName localName = new ObjectName(DOMAIN + ":type=BufferMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, localName);
+			objectName = localName;
+		} catch (JMException ex) {
+			throw new CacheException("can't register metrics '" + name + "'", ex);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.unregisterMBean(objectName);
+		} catch (JMException ex) {
+			throw new CacheException("can't unregister metrics '" + objectName + "'", ex);
+		} finally {
+			objectName = null;
+		}
+	}
+
+	@Override
+	public long getEnqueuedChunks() {
+		return enqueuedChunks.sum();
+	}
+
+	@Override
+	public long getEnqueuedBytes() {
+		return enqueuedBytes.sum();
+	}
+
+	@Override
+	public long getDequeuedChunks() {
+		return dequeuedChunks.sum();
+	}
+
+	@Override
+	public long getCreatedPages() {
+		return createdPages.sum();
+	}
+
+	@Override
+	public long getEvictedPages() {
+		return evictedPages.sum();
+	}
+
+	@Override
+	public long getForceCount() {
+		return forceLatency.getCount();
+	}
+
+	@Override
+	public long getForceMeanMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(forceLatency.getMean());
+	}
+
+	@Override
+	public long getForce99thPercentileMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(forceLatency.getPercentile(99));
+	}
+
+	@Override
+	public long getForceMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(forceLatency.getMax());
+	}
+
+	@Override
+	public int getMaxConsumerLag() {
+		int result = 0;
+		for (Integer lag : consumerLag.values()) {
+			result = Math.max(result, lag);
+		}
+		return result;
+	}
+
+	/**
+	 * the lag of the consumer in pages, -1 for an unknown consumer
+	 */
+	public int getConsumerLag(String consumer) {
+		Integer lag = consumerLag.get(consumer);
+		return lag == null ? -1 : lag;
+	}
+
+	@Override
+	public long getMappedBytes() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("mapped".equals(pool.getName())) {
+				return pool.getMemoryUsed();
+			}
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,32 @@
+package net.wohlfart.filebuffer;
+
+/**
+ * the JMX view of the buffer metrics, durations are in microseconds
+ */
+public interface BufferMetricsMBean {
+
+	long getEnqueuedChunks();
+
+	long getEnqueuedBytes();
+
+	long getDequeuedChunks();
+
+	long getCreatedPages();
+
+	long getEvictedPages();
+
+	long getForceCount();
+
+	long getForceMeanMicros();
+
+	long getForce99thPercentileMicros();
+
+	long getForceMaxMicros();
+
+	// the largest lag of the open consumers in pages
+	int getMaxConsumerLag();
+
+	// memory mapped by the whole JVM
+	long getMappedBytes();
+
+}
@@ -0,0 +1,72 @@
+package net.wohlfart.filebuffer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * the checksum stored after the size of a chunk, it covers the size and the payload so
+ * a torn write of either is found by the recovery, CRC32 is an intrinsic in current VMs
+ */
+final class ChunkChecksum {
+
+	private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	// set when the VM refused a direct buffer, the buffers of shared memory segments can't be
+	// passed to native code on some VMs, from then on direct buffers are copied
+	private static volatile boolean copyDirect;
+
+	private ChunkChecksum() {
+		// static helper
+	}
+
+	/**
+	 * the checksum of size bytes of payload at position, size is the stored int with the
+	 * fragment flags, position and limit of the buffer are restored, the buffer must not be
+	 * used by another thread
+	 */
+	static int checksum(ByteBuffer buffer, int position, int size) {
+		if (!copyDirect || !buffer.isDirect()) {
+			try {
+				return checksum(buffer, position, size, false);
+			} catch (UnsupportedOperationException ex) {
+				copyDirect = true;
+			}
+		}
+		return checksum(buffer, position, size, true);
+	}
+
+	private static int checksum(ByteBuffer buffer, int position, int size, boolean copy) {
+		CRC32 crc = CRC.get();
+		crc.reset();
+		crc.update(size >>> 24);
+		crc.update(size >>> 16);
+		crc.update(size >>> 8);
+		crc.update(size);
+		int oldPosition = buffer.position();
+		int oldLimit = buffer.limit();
+		buffer.limit(position + (size & PageImpl.SIZE_MASK));
+		buffer.position(position);
+		try {
+			if (copy) {
+				update(crc, buffer);
+			} else {
+				crc.update(buffer);
+			}
+		} finally {
+			buffer.limit(oldLimit);
+			buffer.position(oldPosition);
+		}
+		return (int) crc.getValue();
+	}
+
+	private static void update(CRC32 crc, ByteBuffer buffer) {
+		byte[] scratch = SCRATCH.get();
+		while (buffer.hasRemaining()) {
+			int length = Math.min(scratch.length, buffer.remaining());
+			buffer.get(scratch, 0, length);
+			crc.update(scratch, 0, length);
+		}
+	}
+
+}
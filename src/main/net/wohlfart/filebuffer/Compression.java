@@ -0,0 +1,14 @@
+package net.wohlfart.filebuffer;
+
+/**
+ * how the chunks of a page are stored, with compression the chunks are collected into
+ * blocks and each block is compressed and stored as one record of the page
+ */
+public enum Compression {
+
+	NONE,
+
+	// java.util.zip, no native code
+	DEFLATE;
+
+}
@@ -0,0 +1,189 @@
+package net.wohlfart.filebuffer;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the read positions of the named consumers, kept in a small memory mapped file in the
+ * cache directory so a consumer resumes where it stopped after a restart
+ *
+ * each consumer has a slot with its name and two positions, a position is the timestamp of
+ * the page and the offset in the page, a new position is written to the unused one and then
+ * a selector is switched with an ordered store, so the slot always has a complete position,
+ * for a compressed page the offset also has the read position in the current block
+ *
+ * the slots are padded to a power of two so no slot crosses a page of the file, the mapping
+ * is unmapped on close, a cursor that is still open can't store its position anymore
+ */
+class ConsumerOffsets {
+
+	static final String OFFSETS_FILENAME = "consumers.offsets";
+	static final long NO_PAGE = Long.MIN_VALUE;
+	static final int MAX_CONSUMERS = 64;
+
+	// name length and the name bytes
+	static final int NAME_SIZE = 32;
+	static final int MAX_NAME_SIZE = NAME_SIZE - PageImpl.INT_SIZE;
+	private static final int SELECTOR_POS = NAME_SIZE;
+	private static final int POSITIONS_POS = SELECTOR_POS + PageImpl.LONG_SIZE;
+	private static final int POSITION_SIZE = PageImpl.LONG_SIZE + PageImpl.LONG_SIZE;
+	// the name, the selector and the positions take 72 bytes
+	static final int SLOT_SIZE = 128;
+
+	private final File offsetsFile;
+	private final MappedByteBuffer buffer;
+	// the running accesses to the mapping, close waits for them before it unmaps
+	private final AtomicInteger accesses = new AtomicInteger();
+	private volatile boolean closed;
+
+	ConsumerOffsets(File cacheDir) {
+		this.offsetsFile = new File(cacheDir, OFFSETS_FILENAME);
+		try (RandomAccessFile rand = new RandomAccessFile(offsetsFile, "rw");
+				FileChannel channel = rand.getChannel()) {
+			buffer = channel.map(READ_WRITE, 0, SLOT_SIZE * MAX_CONSUMERS);
+		} catch (IOException ex) {
+			throw new CacheException("error mapping offsets, file: '" + offsetsFile + "'", ex);
+		}
+	}
+
+	/**
+	 * the slot of the consumer, a new slot without a position is created for an unknown name
+	 */
+	synchronized int slot(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length == 0 || bytes.length > MAX_NAME_SIZE) {
+			throw new CacheException("consumer name must have 1 to " + MAX_NAME_SIZE + " bytes: '" + name + "'");
+		}
+		enter();
+		try {
+			return slot(bytes);
+		} finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	private int slot(byte[] bytes) {
+		int free = -1;
+		for (int slot = 0; slot < MAX_CONSUMERS; slot++) {
+			int start = slot * SLOT_SIZE;
+			int length = buffer.getInt(start);
+			if (length == 0) {
+				free = free < 0 ? slot : free;
+			} else if (length == bytes.length && hasName(start, bytes)) {
+				return slot;
+			}
+		}
+		if (free < 0) {
+			throw new CacheException("no free consumer slot, file: '" + offsetsFile + "'");
+		}
+		int start = free * SLOT_SIZE;
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(start + PageImpl.INT_SIZE + i, bytes[i]);
+		}
+		buffer.putLong(start + POSITIONS_POS, NO_PAGE);
+		buffer.putLong(start + POSITIONS_POS + POSITION_SIZE, NO_PAGE);
+		buffer.putLong(start + SELECTOR_POS, 0);
+		// the name length makes the slot valid
+		MemoryAccess.putIntVolatile(buffer, start, bytes.length);
+		return free;
+	}
+
+	/**
+	 * the timestamp of the page of the last stored position or NO_PAGE
+	 */
+	long getPage(int slot) {
+		enter();
+		try {
+			return buffer.getLong(position(slot));
+		} finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	long getOffset(int slot) {
+		enter();
+		try {
+			return buffer.getLong(position(slot) + PageImpl.LONG_SIZE);
+		} finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	/**
+	 * store a new position, a slot must only be updated by one thread at a time
+	 */
+	void store(int slot, long page, long offset) {
+		enter();
+		try {
+			int start = slot * SLOT_SIZE;
+			long next = 1 - buffer.getLong(start + SELECTOR_POS);
+			int position = start + POSITIONS_POS + (int) next * POSITION_SIZE;
+			buffer.putLong(position, page);
+			buffer.putLong(position + PageImpl.LONG_SIZE, offset);
+			MemoryAccess.putOrderedLong(buffer, start + SELECTOR_POS, next);
+		} finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	/**
+	 * write the positions to disk, nothing to do after close
+	 */
+	void force() {
+		accesses.incrementAndGet();
+		try {
+			if (!closed) {
+				buffer.force();
+			}
+		} finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	/**
+	 * write the positions to disk and unmap the file
+	 */
+	void close() {
+		if (closed) {
+			return;
+		}
+		buffer.force();
+		closed = true;
+		while (accesses.get() > 0) {
+			Thread.yield();
+		}
+		Unmapper.unmap(buffer);
+	}
+
+	// the caller decrements the accesses when it is done with the mapping
+	private void enter() {
+		accesses.incrementAndGet();
+		if (closed) {
+			accesses.decrementAndGet();
+			throw new CacheException("consumer offsets are closed, file: '" + offsetsFile + "'");
+		}
+	}
+
+	private int position(int slot) {
+		int start = slot * SLOT_SIZE;
+		long selector = MemoryAccess.getLongVolatile(buffer, start + SELECTOR_POS);
+		return start + POSITIONS_POS + (int) selector * POSITION_SIZE;
+	}
+
+	private boolean hasName(int start, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (buffer.get(start + PageImpl.INT_SIZE + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,614 @@
+package net.wohlfart.filebuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * reads the pages with its own view of the current page, a named cursor stores its
+ * position after each read and starts from the stored position when it is opened again
+ *
+ * the records of a compressed page are blocks, the chunks are read from the decompressed
+ * block and the stored position is the offset of the block and the position in the block
+ *
+ * a chunk larger than a page is stored as fragments on consecutive pages, dequeueFragments
+ * passes them one by one, the other reads join them into one heap buffer as soon as the
+ * last fragment is written
+ */
+class CursorImpl implements ICursor {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // stored with the offset of an uncompressed page when the cursor is between two fragments
+    private static final long IN_CHUNK = 1L << 62;
+
+	private final String name;
+	private final IPageHandler pageHandler;
+	private final ConsumerOffsets offsets;
+	private final int slot;
+
+	private long firstReadTimestamp = Long.MIN_VALUE;
+	private IPage page;
+	private ByteBuffer view;
+	// the flyweight for dequeueView, a duplicate of the view
+	private ByteBuffer chunkView;
+	// opened for the first transfer from the current page
+	private FileChannel channel;
+	// the current block of a compressed page and the offset of its record
+	private boolean compressed;
+	private BlockReader blocks;
+	private int blockOffset;
+	// the fragments of a chunk are read up to the current position
+	private boolean inChunk;
+	// the next chunk is the first fragment of a chunk larger than a page
+	private boolean largeChunk;
+	// the page and the position behind the last joined chunk
+	private IPage joinedPage;
+	private ByteBuffer joinedView;
+
+	/**
+	 * a cursor without a persisted position
+	 */
+	CursorImpl(IPageHandler pageHandler) {
+		this(null, pageHandler, null, -1);
+	}
+
+	CursorImpl(String name, IPageHandler pageHandler, ConsumerOffsets offsets, int slot) {
+		this.name = name;
+		this.pageHandler = pageHandler;
+		this.offsets = offsets;
+		this.slot = slot;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * set the read position to timestamp or shortly before
+	 */
+	@Override
+	public void setReadStart(long firstReadTimestamp) {
+		this.firstReadTimestamp = firstReadTimestamp;
+		this.inChunk = false;
+		IPage startPage = pageHandler.findPage(firstReadTimestamp);
+		if (startPage == null) {
+			closeChannel();
+			closeView();
+			if (offsets != null) {
+				offsets.store(slot, ConsumerOffsets.NO_PAGE, 0);
+			}
+			return;
+		}
+		moveTo(startPage, startPage.createReadView(firstReadTimestamp));
+	}
+
+	@Override
+	public ByteBuffer dequeue() {
+		IPage current = nextChunkPage();
+		if (current == null) {
+			return EMPTY;
+		}
+		if (largeChunk) {
+			ByteBuffer result = joinFragments();
+			if (result == null) {
+				return EMPTY;
+			}
+			moveBehindJoined();
+			return result;
+		}
+		ByteBuffer result = compressed ? blocks.read() : current.read(view);
+		store();
+		return result;
+	}
+
+	/**
+	 * copy the next chunk into target, nothing is allocated as long as the cursor
+	 * stays on the same page, a chunk that doesn't fit stays and ~size is returned
+	 */
+	@Override
+	public int dequeue(ByteBuffer target) {
+		IPage current = nextChunkPage();
+		if (current == null) {
+			return IBuffer.NO_DATA;
+		}
+		if (largeChunk) {
+			ByteBuffer chunk = joinFragments();
+			if (chunk == null) {
+				return IBuffer.NO_DATA;
+			}
+			if (chunk.remaining() > target.remaining()) {
+				releaseJoined();
+				return ~chunk.remaining();
+			}
+			moveBehindJoined();
+			int result = chunk.remaining();
+			target.put(chunk);
+			return result;
+		}
+		int result = compressed ? blocks.read(target) : current.read(view, target);
+		store();
+		return result;
+	}
+
+	/**
+	 * the next chunk between position and limit of a view that is reused for all chunks
+	 * of a page, the view is only valid until the next call, a chunk larger than a page
+	 * is returned in a new heap buffer
+	 */
+	@Override
+	public ByteBuffer dequeueView() {
+		IPage current = nextChunkPage();
+		if (current == null) {
+			return EMPTY;
+		}
+		if (largeChunk) {
+			ByteBuffer result = joinFragments();
+			if (result == null) {
+				return EMPTY;
+			}
+			moveBehindJoined();
+			return result;
+		}
+		if (compressed) {
+			ByteBuffer result = blocks.nextView();
+			store();
+			return result;
+		}
+		if (current.nextChunk(view, chunkView) == IBuffer.NO_DATA) {
+			chunkView.limit(chunkView.position());
+		}
+		store();
+		return chunkView;
+	}
+
+	/**
+	 * the chunk the next dequeueView returns in the same view, the position and the stored
+	 * position stay in front of the chunk
+	 */
+	@Override
+	public ByteBuffer peekView() {
+		IPage current = nextChunkPage();
+		if (current == null) {
+			return EMPTY;
+		}
+		if (largeChunk) {
+			ByteBuffer result = joinFragments();
+			if (result == null) {
+				return EMPTY;
+			}
+			releaseJoined();
+			return result;
+		}
+		if (compressed) {
+			int position = blocks.position();
+			ByteBuffer result = blocks.nextView();
+			blocks.position(position);
+			return result;
+		}
+		int position = view.position();
+		if (current.nextChunk(view, chunkView) == IBuffer.NO_DATA) {
+			chunkView.limit(chunkView.position());
+		}
+		view.position(position);
+		return chunkView;
+	}
+
+	@Override
+	public int dequeue(int max, Consumer<? super ByteBuffer> consumer) {
+		int count = 0;
+		while (count < max) {
+			IPage current = nextChunkPage();
+			if (current == null) {
+				break;
+			}
+			if (largeChunk) {
+				ByteBuffer chunk = joinFragments();
+				if (chunk == null) {
+					break;
+				}
+				moveBehindJoined();
+				consumer.accept(chunk);
+				count++;
+				continue;
+			}
+			int read = compressed ? blocks.read(max - count, consumer) : current.read(view, max - count, consumer);
+			store();
+			if (read == 0) {
+				break;
+			}
+			count += read;
+		}
+		return count;
+	}
+
+	/**
+	 * transfer whole chunks up to maxBytes from the following pages, the chunks of a page are
+	 * sent with one transferTo in framed mode, the chunks of a compressed page are copied
+	 */
+	@Override
+	public long dequeueTo(WritableByteChannel target, long maxBytes, boolean framed) {
+		long total = 0;
+		while (total < maxBytes) {
+			IPage current = nextChunkPage();
+			if (current == null) {
+				break;
+			}
+			if (largeChunk) {
+				long copied = copyJoined(target, maxBytes - total, framed);
+				if (copied == 0) {
+					break;
+				}
+				total += copied;
+				continue;
+			}
+			if (compressed) {
+				long copied = copyTo(target, maxBytes - total, framed);
+				total += copied;
+				if (copied == 0 || blocks.hasRemaining()) {
+					break;
+				}
+				continue;
+			}
+			if (channel == null) {
+				channel = current.openReadChannel();
+			}
+			int position = view.position();
+			total += current.transferTo(view, channel, target, maxBytes - total, framed);
+			store();
+			// no data yet or the next chunk doesn't fit
+			if (view.position() == position || view.position() < PageMetadata.getLimit(view)) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * pass the next chunk to the consumer, a chunk larger than a page in fragments with true for
+	 * the last one, the fragments are only valid in the consumer, if the following fragments
+	 * aren't written yet the next call continues with them, returns the number of bytes passed
+	 * or IBuffer.NO_DATA
+	 */
+	@Override
+	public long dequeueFragments(BiConsumer<? super ByteBuffer, Boolean> consumer) {
+		long total = 0;
+		while (true) {
+			IPage current = nextPage();
+			if (current == null) {
+				return total > 0 ? total : IBuffer.NO_DATA;
+			}
+			if (compressed) {
+				ByteBuffer chunk = blocks.nextView();
+				store();
+				int size = chunk.remaining();
+				consumer.accept(chunk, Boolean.TRUE);
+				return size;
+			}
+			int record = current.peekRecord(view);
+			if (record == IBuffer.NO_DATA) {
+				return total > 0 ? total : IBuffer.NO_DATA;
+			}
+			boolean continued = (record & PageImpl.FRAGMENT_CONTINUED) != 0;
+			if (continued && !inChunk) {
+				// the start of the chunk is gone
+				current.nextChunk(view, chunkView);
+				store();
+				continue;
+			}
+			if (!continued && inChunk) {
+				inChunk = false;
+				store();
+				throw new CacheException("the rest of the fragmented chunk is missing");
+			}
+			current.nextChunk(view, chunkView);
+			boolean last = (record & PageImpl.FRAGMENT_MORE) == 0;
+			inChunk = !last;
+			store();
+			total += chunkView.remaining();
+			consumer.accept(chunkView, last);
+			if (last) {
+				return total;
+			}
+		}
+	}
+
+	/**
+	 * stores the position and releases the consumer for the retention
+	 */
+	@Override
+	public void close() {
+		if (offsets != null) {
+			offsets.force();
+		}
+		closeChannel();
+		closeView();
+		if (blocks != null) {
+			blocks.close();
+			blocks = null;
+		}
+		if (name != null) {
+			pageHandler.unregisterConsumer(name);
+		}
+	}
+
+	// returns the page for the next read or null if there is no data yet
+	private IPage nextPage() {
+		if (page == null && !open()) {
+			return null;
+		}
+		while (true) {
+			if (compressed && blocks.hasRemaining()) {
+				return page;
+			}
+			if (!page.isReadComplete(view)) {
+				if (!compressed) {
+					return page;
+				}
+				if (!loadBlock()) {
+					return null;
+				}
+				continue;
+			}
+			IPage nextPage = pageHandler.getNextPage(page);
+			if (nextPage == null) {
+				return null;
+			}
+			moveTo(nextPage, nextPage.createReadView(Long.MIN_VALUE));
+		}
+	}
+
+	// the page for the next whole chunk, largeChunk is set if the chunk has to be joined from its
+	// fragments, fragments without the start of their chunk are skipped, this includes the rest
+	// of a chunk that dequeueFragments has started
+	private IPage nextChunkPage() {
+		largeChunk = false;
+		while (true) {
+			IPage current = nextPage();
+			if (current == null || compressed) {
+				return current;
+			}
+			int record = current.peekRecord(view);
+			if (record == IBuffer.NO_DATA) {
+				return current;
+			}
+			if ((record & PageImpl.FRAGMENT_CONTINUED) != 0) {
+				current.nextChunk(view, chunkView);
+				inChunk = (record & PageImpl.FRAGMENT_MORE) != 0;
+				store();
+				continue;
+			}
+			inChunk = false;
+			largeChunk = (record & PageImpl.FRAGMENT_MORE) != 0;
+			return current;
+		}
+	}
+
+	// the chunk at the current position joined from its fragments, the cursor doesn't move until
+	// moveBehindJoined, null if the following fragments aren't written yet, if the rest of the
+	// chunk is missing the cursor moves past the fragments and an exception is thrown
+	private ByteBuffer joinFragments() {
+		IPage current = page;
+		ByteBuffer currentView = view.duplicate();
+		ByteBuffer fragment = currentView.duplicate();
+		ByteBuffer chunk = ByteBuffer.allocate(0);
+		try {
+			int record = current.peekRecord(currentView);
+			while (true) {
+				current.nextChunk(currentView, fragment);
+				chunk = append(chunk, fragment);
+				if ((record & PageImpl.FRAGMENT_MORE) == 0) {
+					chunk.flip();
+					joinedPage = current;
+					joinedView = currentView;
+					current = null;
+					return chunk;
+				}
+				IPage nextPage = pageHandler.getNextPage(current);
+				if (nextPage == null) {
+					return null;
+				}
+				if (current != page) {
+					current.closeReadView(currentView);
+				}
+				current = nextPage;
+				currentView = nextPage.createReadView(Long.MIN_VALUE);
+				fragment = currentView.duplicate();
+				record = current.peekRecord(currentView);
+				if (record == IBuffer.NO_DATA) {
+					return null;
+				}
+				if ((record & PageImpl.FRAGMENT_CONTINUED) == 0) {
+					IPage nextChunkPage = current;
+					current = null;
+					moveTo(nextChunkPage, currentView);
+					throw new CacheException("the rest of the fragmented chunk is missing");
+				}
+			}
+		} finally {
+			if (current != null && current != page) {
+				current.closeReadView(currentView);
+			}
+		}
+	}
+
+	private void moveBehindJoined() {
+		moveTo(joinedPage, joinedView);
+		joinedPage = null;
+		joinedView = null;
+	}
+
+	private void releaseJoined() {
+		joinedPage.closeReadView(joinedView);
+		joinedPage = null;
+		joinedView = null;
+	}
+
+	private static ByteBuffer append(ByteBuffer chunk, ByteBuffer fragment) {
+		if (chunk.remaining() < fragment.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(chunk.capacity() * 2, chunk.position() + fragment.remaining()));
+			chunk.flip();
+			larger.put(chunk);
+			chunk = larger;
+		}
+		chunk.put(fragment);
+		return chunk;
+	}
+
+	// write the joined chunk if it fits into maxBytes, returns the bytes written
+	private long copyJoined(WritableByteChannel target, long maxBytes, boolean framed) {
+		ByteBuffer chunk = joinFragments();
+		if (chunk == null) {
+			return 0;
+		}
+		int size = chunk.remaining() + (framed ? PageImpl.INT_SIZE : 0);
+		if (size > maxBytes) {
+			releaseJoined();
+			return 0;
+		}
+		moveBehindJoined();
+		try {
+			if (framed) {
+				ByteBuffer frame = ByteBuffer.allocate(PageImpl.INT_SIZE);
+				frame.putInt(0, chunk.remaining());
+				while (frame.hasRemaining()) {
+					target.write(frame);
+				}
+			}
+			while (chunk.hasRemaining()) {
+				target.write(chunk);
+			}
+		} catch (IOException ex) {
+			throw new CacheException("error writing data", ex);
+		}
+		return size;
+	}
+
+	// decompress the next block of a compressed page, false if there is no block yet
+	private boolean loadBlock() {
+		int offset = view.position();
+		if (page.nextChunk(view, chunkView) == IBuffer.NO_DATA) {
+			return false;
+		}
+		blockOffset = offset;
+		blocks.load(chunkView);
+		return true;
+	}
+
+	// write whole chunks of the current block up to maxBytes
+	private long copyTo(WritableByteChannel target, long maxBytes, boolean framed) {
+		long total = 0;
+		try {
+			while (blocks.hasRemaining()) {
+				int size = blocks.nextSize() + (framed ? PageImpl.INT_SIZE : 0);
+				if (total + size > maxBytes) {
+					break;
+				}
+				ByteBuffer chunk = framed ? blocks.nextRecord() : blocks.nextView();
+				while (chunk.hasRemaining()) {
+					target.write(chunk);
+				}
+				total += size;
+			}
+		} catch (IOException ex) {
+			throw new CacheException("error writing data", ex);
+		}
+		store();
+		return total;
+	}
+
+	// start at the stored position or at the first read timestamp
+	private boolean open() {
+		long storedPage = offsets == null ? ConsumerOffsets.NO_PAGE : offsets.getPage(slot);
+		inChunk = false;
+		if (storedPage == ConsumerOffsets.NO_PAGE) {
+			IPage startPage = pageHandler.findPage(firstReadTimestamp);
+			if (startPage == null) {
+				return false;
+			}
+			moveTo(startPage, startPage.createReadView(firstReadTimestamp));
+			return true;
+		}
+		IPage startPage = pageHandler.getPage(storedPage);
+		if (startPage == null) {
+			return false;
+		}
+		ByteBuffer startView = startPage.createReadView(Long.MIN_VALUE);
+		if (startPage.getTimestamp() != storedPage) {
+			// the page was evicted and we continue with the next one
+			moveTo(startPage, startView);
+			return true;
+		}
+		long stored = offsets.getOffset(slot);
+		if (!startPage.isCompressed()) {
+			inChunk = (stored & IN_CHUNK) != 0;
+			stored &= ~IN_CHUNK;
+		}
+		int offset = (int) stored;
+		int blockPosition = (int) (stored >>> 32);
+		if (offset < startView.position() || offset > PageMetadata.getLimit(startView)) {
+			startPage.closeReadView(startView);
+			throw new CacheException("invalid offset " + offset + " for consumer '" + name + "'");
+		}
+		startView.position(offset);
+		moveTo(startPage, startView);
+		if (blockPosition > 0 && compressed && loadBlock()) {
+			blocks.position(blockPosition);
+		}
+		return true;
+	}
+
+	private void moveTo(IPage nextPage, ByteBuffer nextView) {
+		closeChannel();
+		closeView();
+		page = nextPage;
+		view = nextView;
+		chunkView = nextView.duplicate();
+		compressed = nextPage.isCompressed();
+		if (compressed) {
+			if (blocks == null) {
+				blocks = new BlockReader();
+			}
+			blocks.clear();
+			blockOffset = nextView.position();
+		}
+		if (name != null) {
+			pageHandler.acknowledge(name, page);
+		}
+		store();
+	}
+
+	// release the view of the current page
+	private void closeView() {
+		if (page != null) {
+			page.closeReadView(view);
+		}
+		page = null;
+		view = null;
+		chunkView = null;
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				throw new CacheException("error closing channel", ex);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	private void store() {
+		if (offsets != null) {
+			long position = compressed ? (long) blocks.position() << 32 | blockOffset
+					: view.position() | (inChunk ? IN_CHUNK : 0);
+			offsets.store(slot, page.getTimestamp(), position);
+		}
+	}
+
+}
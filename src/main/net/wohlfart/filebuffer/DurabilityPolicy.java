@@ -0,0 +1,21 @@
+package net.wohlfart.filebuffer;
+
+/**
+ * when the data written into the pages is forced to disk
+ */
+public enum DurabilityPolicy {
+
+	// never force, the operating system writes the pages back eventually
+	NONE,
+
+	// force a page when it is closed, this is the default
+	PAGE,
+
+	// force the write page every few milliseconds or after a number of bytes
+	PERIODIC,
+
+	// force as soon as a producer waits for durability, producers waiting
+	// at the same time share a single force
+	GROUP_COMMIT
+
+}
@@ -2,15 +2,62 @@ package net.wohlfart.filebuffer;
 
 
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface IBuffer {
 
+    // returned by the allocation free dequeue when there is no more data yet
+    int NO_DATA = -1;
+
     // store data that happened at timestamp or later
     void enqueue(ByteBuffer chunk, long timestamp) throws CacheException;
 
+    // store chunks[i] with timestamps[i]
+    void enqueueBatch(ByteBuffer[] chunks, long[] timestamps) throws CacheException;
+
+    // completes when all data enqueued so far is on disk
+    CompletableFuture<Void> sync() throws CacheException;
+
 	void setReadStart(long firstReadTimestamp) throws CacheException;
 
     // reads data including data at firstReadTimestamp
     ByteBuffer dequeue() throws CacheException;
 
+    // waits for data to be committed, returns an empty buffer on timeout
+    ByteBuffer dequeue(long timeout, TimeUnit unit) throws CacheException;
+
+    // copies the next chunk into target, returns its size or NO_DATA, allocates nothing,
+    // a chunk that doesn't fit stays and ~size is returned
+    int dequeue(ByteBuffer target) throws CacheException;
+
+    // the next chunk in a view that is reused by the following calls, empty if there is no data
+    ByteBuffer dequeueView() throws CacheException;
+
+    // passes up to max chunks to the consumer, returns the number of chunks
+    int dequeue(int max, Consumer<? super ByteBuffer> consumer) throws CacheException;
+
+    // the next chunk in fragments if it is larger than a page, true with the last fragment,
+    // the fragments are only valid in the consumer
+    long dequeueFragments(BiConsumer<? super ByteBuffer, Boolean> consumer) throws CacheException;
+
+    // fills the array from the start, returns the number of chunks
+    int drainTo(ByteBuffer[] chunks) throws CacheException;
+
+    // sends the payloads of the next chunks to the channel without copying them
+    long dequeueTo(WritableByteChannel target, long maxBytes) throws CacheException;
+
+    // framed sends the stored records with their size in front
+    long dequeueTo(WritableByteChannel target, long maxBytes, boolean framed) throws CacheException;
+
+    // the chunks from the first to the second timestamp, or shortly before and after, in a parallel stream
+    Stream<ByteBuffer> scan(long fromTimestamp, long toTimestamp) throws CacheException;
+
+    // an independent reader, resumes where the last cursor with this name stopped
+    ICursor openCursor(String name) throws CacheException;
+
 }
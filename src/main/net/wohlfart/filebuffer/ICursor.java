@@ -0,0 +1,46 @@
+package net.wohlfart.filebuffer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * a reader with its own position, a cursor can be used from any thread but only
+ * by one thread at a time
+ */
+public interface ICursor extends Closeable {
+
+	// null for a cursor without a persisted position
+	String getName();
+
+	void setReadStart(long firstReadTimestamp) throws CacheException;
+
+    // reads the next chunk, an empty buffer if there is no more data yet, the chunk stays valid
+    ByteBuffer dequeue() throws CacheException;
+
+    // copies the next chunk into target, returns its size or IBuffer.NO_DATA, a chunk that
+    // doesn't fit stays and ~size is returned
+    int dequeue(ByteBuffer target) throws CacheException;
+
+    // the next chunk in a view that is reused by the following calls
+    ByteBuffer dequeueView() throws CacheException;
+
+    // the chunk the next dequeueView returns, the position doesn't move
+    ByteBuffer peekView() throws CacheException;
+
+    // passes up to max chunks to the consumer, returns the number of chunks
+    int dequeue(int max, Consumer<? super ByteBuffer> consumer) throws CacheException;
+
+    // the next chunk in fragments if it is larger than a page, true with the last fragment,
+    // the fragments are only valid in the consumer
+    long dequeueFragments(BiConsumer<? super ByteBuffer, Boolean> consumer) throws CacheException;
+
+    // sends the committed chunks to the channel without copying, returns the number of bytes
+    long dequeueTo(WritableByteChannel target, long maxBytes, boolean framed) throws CacheException;
+
+    @Override
+    void close();
+
+}
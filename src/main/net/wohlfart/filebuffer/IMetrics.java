@@ -0,0 +1,33 @@
+package net.wohlfart.filebuffer;
+
+/**
+ * receives the events of the buffer, the handler and the pages, the methods are called on
+ * the hot paths and must not block, NONE ignores everything and is the default, the empty
+ * calls are inlined by the jit so a buffer without metrics doesn't pay for them
+ */
+public interface IMetrics {
+
+	IMetrics NONE = new IMetrics() {};
+
+	// chunks and their payload bytes stored by enqueue
+	default void enqueued(int chunks, long bytes) {}
+
+	// chunks returned by dequeue
+	default void dequeued(int chunks) {}
+
+	// a new write page, the first page or a rollover
+	default void pageCreated() {}
+
+	// pages removed by the retention
+	default void pagesEvicted(int pages) {}
+
+	// a write page was forced to disk
+	default void forced(long nanos) {}
+
+	// the number of pages after the page the consumer is reading
+	default void consumerLag(String consumer, int pages) {}
+
+	// the consumer was closed
+	default void consumerRemoved(String consumer) {}
+
+}
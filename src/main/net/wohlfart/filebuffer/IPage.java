@@ -1,12 +1,33 @@
 package net.wohlfart.filebuffer;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Consumer;
 
 public interface IPage {
 
 	long getTimestamp();
+
+	long getLastTimestamp();
 	
 	long getIndex();
+
+	long getLimit();
+
+	int getFileSize();
+
+	// a page is the whole file or a segment of the file starting at the offset
+	File getFile();
+
+	long getFileOffset();
+
+	// the chunks are stored in compressed blocks, reading with a view returns the blocks
+	boolean isCompressed();
+
+	// the header flags of the page, they are kept in the catalog
+	int getFlags();
 	
 	
 	// writing   ----------
@@ -21,19 +42,69 @@ public interface IPage {
 	
     void write(ByteBuffer buffer);
 
+    void write(ByteBuffer buffer, long timestamp);
+
+	void sealWriteBuffer();
+
+	// concurrent write, false if the page is full
+	boolean offer(ByteBuffer buffer, long timestamp);
+
+	// batch writes, return the number of chunks that fit into the page
+	int write(ByteBuffer[] buffers, long[] timestamps, int offset, int length);
+
+	int offer(ByteBuffer[] buffers, long[] timestamps, int offset, int length);
+
+	// a chunk larger than the page, returns the number of bytes of the fragment
+	int writeFragment(ByteBuffer buffer, long timestamp, boolean first);
+
+	void forceWriteBuffer();
+
 	void closeWriteBuffer();
 
+	void closeWriteBuffer(boolean force);
+
 	
 	// reading  --------
 
 	boolean hasReadBuffer();
 
 	void openReadBuffer();
+
+	void openReadBuffer(long timestamp);
 	
 	boolean isReadComplete();
 
+	boolean isReadAvailable();
+
     ByteBuffer read();
+
+    int read(int max, Consumer<? super ByteBuffer> consumer);
     
 	void closeReadBuffer();
+
+	// reading with a view that keeps the position, independent of the current thread
+	ByteBuffer createReadView(long timestamp);
+
+	// release a view from createReadView
+	void closeReadView(ByteBuffer view);
+
+	boolean isReadComplete(ByteBuffer view);
+
+	ByteBuffer read(ByteBuffer view);
+
+	int read(ByteBuffer view, int max, Consumer<? super ByteBuffer> consumer);
+
+	// allocation free reading, return the chunk size, IBuffer.NO_DATA or ~size if it doesn't fit
+	int read(ByteBuffer view, ByteBuffer target);
+
+	int nextChunk(ByteBuffer view, ByteBuffer chunkView);
+
+	// the size of the next record with the fragment flags or IBuffer.NO_DATA
+	int peekRecord(ByteBuffer view);
+
+	// zero copy reading into a channel
+	FileChannel openReadChannel();
+
+	long transferTo(ByteBuffer view, FileChannel channel, WritableByteChannel target, long maxBytes, boolean framed);
 	
 }
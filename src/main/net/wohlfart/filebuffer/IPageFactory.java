@@ -9,8 +9,31 @@ public interface IPageFactory {
 
 	void setCacheDir(String cacheDir);
 
+	File getCacheDir();
+
+	// pages are written by a single thread without locking
+	void setSingleWriter(boolean singleWriter);
+
+	// receives the force times of the write pages
+	void setMetrics(IMetrics metrics);
+
 	IPage create(long timestamp);
 
+	// a page with a key above the previous page that starts with an earlier timestamp
+	IPage create(long key, long timestamp);
+
 	Set<IPage> getPages();
 
+	// called after a page was sealed and closed for writing
+	void pageClosed(IPage page);
+
+	// remove the page file once it is not read anymore, the page must not be used for writing
+	boolean delete(IPage page);
+
+	// the bytes of the files prepared for new pages, they count against the disk budget
+	long getSpareSize();
+
+	// stop the background work and remove the unused files
+	void close();
+
 }
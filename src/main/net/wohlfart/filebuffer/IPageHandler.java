@@ -1,5 +1,7 @@
 package net.wohlfart.filebuffer;
 
+import java.util.List;
+
 
 public interface IPageHandler {
 
@@ -10,10 +12,32 @@ public interface IPageHandler {
 
 	void closeWritePage(IPage writePage);
 
+	void closeWritePage(IPage writePage, boolean force);
+
 	IPage getReadPage(long firstReadTimestamp);
 
 	void closeReadPage(IPage readPage);
 
 	IPage getNextReadPage(IPage readPage);
 
+	// lookup without opening a read buffer
+	IPage findPage(long timestamp);
+
+	IPage getPage(long pageTimestamp);
+
+	IPage getNextPage(IPage page);
+
+	// the pages with chunks from the first to the second timestamp, oldest first
+	List<IPage> getPages(long fromTimestamp, long toTimestamp);
+
+	// a reader with a persisted position, only one cursor per name can be open
+	ICursor openCursor(String name);
+
+	// consumer progress for the retention of pages
+	void registerConsumer(String consumer);
+
+	void acknowledge(String consumer, IPage readPage);
+
+	void unregisterConsumer(String consumer);
+
 }
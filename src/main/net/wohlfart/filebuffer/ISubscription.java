@@ -0,0 +1,14 @@
+package net.wohlfart.filebuffer;
+
+/**
+ * the demand of a subscriber, no chunk is passed without a request
+ */
+public interface ISubscription {
+
+	// allow n more chunks to be passed to the subscriber
+	void request(long n);
+
+	// stop passing chunks and close the cursor of the subscription
+	void cancel();
+
+}
@@ -0,0 +1,231 @@
+package net.wohlfart.filebuffer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * shared read only mappings of the pages, all readers of a page get their own view of the
+ * same mapping so seeking back and forth doesn't map and unmap the file again
+ *
+ * the mappings are reference counted, a mapping stays after its last view was released
+ * until the cache needs the space, the least recently used mappings without views are
+ * removed first, a mapping with views is never removed so the cache can grow over
+ * its budget while the readers hold their views, the views also pin a deleted page, its
+ * file is only removed when the last view was released
+ *
+ * the chunks returned by dequeue() or passed to a consumer are slices of the mapping and may
+ * be kept after the view was released, a mapping that handed out such a slice is not unmapped
+ * but retired, the cache only keeps a weak reference and the garbage collector unmaps it with
+ * its last slice, until then it is counted in the mapped bytes and the next reader of the page
+ * gets it back instead of a second mapping, a page has at most one read mapping
+ */
+class MappedRegionCache {
+
+	private final long maxBytes;
+
+	// guarded by this, in access order, retired regions stay until they are collected
+	private final LinkedHashMap<IPage, Region> regions = new LinkedHashMap<>(16, 0.75f, true);
+	// the retired regions that were collected
+	private final ReferenceQueue<MappedByteBuffer> collected = new ReferenceQueue<>();
+	private long mappedBytes;
+
+	MappedRegionCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * a new view of the mapping of the page, the view must be released
+	 */
+	ByteBuffer acquire(PageImpl page) {
+		synchronized (this) {
+			expunge();
+			Region region = regions.get(page);
+			if (region != null && region.revive()) {
+				region.references++;
+				return region.buffer.duplicate();
+			}
+			if (region != null) {
+				// collected but not yet enqueued
+				remove(page, region);
+			}
+		}
+		// map without holding the lock, another reader might do the same
+		MappedByteBuffer buffer = page.mapReadOnly();
+		synchronized (this) {
+			Region region = regions.get(page);
+			if (region == null || !region.revive()) {
+				if (region != null) {
+					remove(page, region);
+				}
+				// no slice of an older mapping of the page is left
+				page.clearEscapedSlices();
+				region = new Region(page, buffer, collected);
+				regions.put(page, region);
+				mappedBytes += region.capacity;
+			} else {
+				page.unmapReadOnly(buffer);
+			}
+			region.references++;
+			evict();
+			return region.buffer.duplicate();
+		}
+	}
+
+	/**
+	 * the view of the page is not used anymore
+	 */
+	void release(IPage page) {
+		Runnable deleted = null;
+		synchronized (this) {
+			Region region = regions.get(page);
+			if (region == null || region.references == 0) {
+				throw new CacheException("no view of the page to release");
+			}
+			region.references--;
+			if (region.references == 0 && region.deleted != null) {
+				deleted = region.deleted;
+				drop(page, region);
+			} else {
+				evict();
+			}
+		}
+		// without the lock, the page factory might call the cache while it deletes the file
+		if (deleted != null) {
+			deleted.run();
+		}
+	}
+
+	/**
+	 * the page is deleted, the mapping is removed and the file is deleted by the given task
+	 * right away or as soon as the last view is released
+	 */
+	void invalidate(IPage page, Runnable deleted) {
+		synchronized (this) {
+			Region region = regions.get(page);
+			if (region != null && region.references > 0) {
+				region.deleted = deleted;
+				return;
+			}
+			if (region != null) {
+				drop(page, region);
+			}
+		}
+		deleted.run();
+	}
+
+	/**
+	 * the bytes of all mappings including the retired ones that are not collected yet
+	 */
+	synchronized long getMappedBytes() {
+		expunge();
+		return mappedBytes;
+	}
+
+	synchronized int size() {
+		expunge();
+		return regions.size();
+	}
+
+	/**
+	 * remove the mappings without views
+	 */
+	synchronized void close() {
+		Iterator<Map.Entry<IPage, Region>> iterator = regions.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Region region = iterator.next().getValue();
+			if (region.references == 0 && region.buffer != null) {
+				iterator.remove();
+				unmapOrRetire(region);
+			}
+		}
+	}
+
+	// the eldest mappings without views until the cache is within its budget,
+	// the retired mappings are counted but can't be removed
+	private void evict() {
+		Iterator<Map.Entry<IPage, Region>> iterator = regions.entrySet().iterator();
+		while (mappedBytes > maxBytes && iterator.hasNext()) {
+			Region region = iterator.next().getValue();
+			if (region.references == 0 && region.buffer != null) {
+				if (!unmapOrRetire(region)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	// the page is deleted, a retired region is still counted until it is collected
+	private void drop(IPage page, Region region) {
+		regions.remove(page);
+		unmapOrRetire(region);
+	}
+
+	// true if the region was retired, false if it was unmapped
+	private boolean unmapOrRetire(Region region) {
+		if (region.buffer == null || region.page.hasEscapedSlices()) {
+			region.buffer = null;
+			return true;
+		}
+		mappedBytes -= region.capacity;
+		region.counted = false;
+		region.clear();
+		region.page.unmapReadOnly(region.buffer);
+		region.buffer = null;
+		return false;
+	}
+
+	// a region that was collected before it was expunged
+	private void remove(IPage page, Region region) {
+		regions.remove(page);
+		if (region.counted) {
+			mappedBytes -= region.capacity;
+			region.counted = false;
+		}
+	}
+
+	private void expunge() {
+		Reference<? extends MappedByteBuffer> reference;
+		while ((reference = collected.poll()) != null) {
+			Region region = (Region) reference;
+			regions.remove(region.page, region);
+			if (region.counted) {
+				mappedBytes -= region.capacity;
+				region.counted = false;
+			}
+		}
+	}
+
+	// the mapping is only weakly referenced after it was retired
+	private static class Region extends WeakReference<MappedByteBuffer> {
+		final PageImpl page;
+		final int capacity;
+		MappedByteBuffer buffer;
+		int references;
+		// removes the file of a deleted page after the last view was released
+		Runnable deleted;
+		// the capacity is part of the mapped bytes
+		boolean counted = true;
+
+		Region(PageImpl page, MappedByteBuffer buffer, ReferenceQueue<MappedByteBuffer> queue) {
+			super(buffer, queue);
+			this.page = page;
+			this.buffer = buffer;
+			this.capacity = buffer.capacity();
+		}
+
+		// false if the mapping was collected or unmapped
+		boolean revive() {
+			if (buffer == null && counted) {
+				buffer = get();
+			}
+			return buffer != null;
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package net.wohlfart.filebuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * maps the files of the pages, the pages only work with the buffers, the mapper decides
+ * what is behind them and how they are forced and unmapped
+ */
+abstract class Mapper {
+
+	/**
+	 * plain mapped buffers, an access after unmapping crashes the VM
+	 */
+	static final Mapper BUFFERS = new Mapper() {
+
+		@Override
+		MappedByteBuffer map(FileChannel channel, MapMode mode, long offset, int size) throws IOException {
+			return channel.map(mode, offset, size);
+		}
+
+		@Override
+		void force(MappedByteBuffer buffer) {
+			buffer.force();
+		}
+
+		@Override
+		void unmap(ByteBuffer buffer) {
+			Unmapper.unmap(buffer);
+		}
+
+	};
+
+	abstract MappedByteBuffer map(FileChannel channel, MapMode mode, long offset, int size) throws IOException;
+
+	abstract void force(MappedByteBuffer buffer);
+
+	/**
+	 * unmap a buffer returned by map(), not a duplicate or a slice of it
+	 */
+	abstract void unmap(ByteBuffer buffer);
+
+}
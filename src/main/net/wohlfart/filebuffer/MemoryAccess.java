@@ -0,0 +1,328 @@
+package net.wohlfart.filebuffer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ordered and volatile access to the header and the chunk sizes in direct buffers,
+ * used to publish the page limit and committed chunks from writers to readers without locking
+ *
+ * the buffer API only has plain reads and writes, so we use Unsafe with the address of the
+ * direct buffer, Unsafe is looked up reflectively like in Unmapper so there is no compile time
+ * dependency on it, if Unsafe is not available the byte buffer view var handles of java 9 and
+ * later do the same for aligned accesses, only on java 8 without Unsafe and for the unaligned
+ * records of older pages the accesses take a global lock which orders them like the volatile
+ * accesses
+ *
+ * heap buffers are private copies of a header, their accesses only lock the buffer
+ */
+final class MemoryAccess {
+
+	// bound to the Unsafe instance or null if Unsafe is not available
+	private static final MethodHandle PUT_ORDERED_LONG;
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle COMPARE_AND_SWAP_LONG;
+	private static final MethodHandle PUT_INT_VOLATILE;
+	private static final MethodHandle GET_INT_VOLATILE;
+	private static final MethodHandle GET_LONG;
+	private static final long ADDRESS_OFFSET;
+
+	// the var handle accesses for each byte order, null if there are no var handles
+	private static final ViewHandles BIG_ENDIAN = ViewHandles.of(ByteOrder.BIG_ENDIAN);
+	private static final ViewHandles LITTLE_ENDIAN = ViewHandles.of(ByteOrder.LITTLE_ENDIAN);
+
+	// a lock instead of a monitor, the accesses are short but a virtual thread shouldn't pin its carrier
+	private static final Lock LOCK = new ReentrantLock();
+
+	static {
+		MethodHandle putOrderedLong = null;
+		MethodHandle getLongVolatile = null;
+		MethodHandle compareAndSwapLong = null;
+		MethodHandle putIntVolatile = null;
+		MethodHandle getIntVolatile = null;
+		MethodHandle getLong = null;
+		long addressOffset = -1;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+					MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+			addressOffset = (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+			putOrderedLong = lookup.findVirtual(unsafeClass, "putOrderedLong",
+					MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+			getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			compareAndSwapLong = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+					MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+			putIntVolatile = lookup.findVirtual(unsafeClass, "putIntVolatile",
+					MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+			getIntVolatile = lookup.findVirtual(unsafeClass, "getIntVolatile",
+					MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+			getLong = lookup.findVirtual(unsafeClass, "getLong",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+		} catch (Throwable ex) {
+			putOrderedLong = null;
+		}
+		if (putOrderedLong == null || getLong == null) {
+			PUT_ORDERED_LONG = null;
+			GET_LONG_VOLATILE = null;
+			COMPARE_AND_SWAP_LONG = null;
+			PUT_INT_VOLATILE = null;
+			GET_INT_VOLATILE = null;
+			GET_LONG = null;
+		} else {
+			PUT_ORDERED_LONG = putOrderedLong;
+			GET_LONG_VOLATILE = getLongVolatile;
+			COMPARE_AND_SWAP_LONG = compareAndSwapLong;
+			PUT_INT_VOLATILE = putIntVolatile;
+			GET_INT_VOLATILE = getIntVolatile;
+			GET_LONG = getLong;
+		}
+		ADDRESS_OFFSET = addressOffset;
+	}
+
+	private MemoryAccess() {
+		// static methods only
+	}
+
+	/**
+	 * store with release semantics, all writes before this store are visible to a
+	 * reader that sees the stored value
+	 */
+	static void putOrderedLong(ByteBuffer buffer, int index, long value) {
+		try {
+			if (!buffer.isDirect()) {
+				synchronized (buffer) {
+					buffer.putLong(index, value);
+				}
+			} else if (PUT_ORDERED_LONG != null) {
+				checkIndex(buffer, index, PageImpl.LONG_SIZE);
+				PUT_ORDERED_LONG.invokeExact((Object) null, address(buffer) + index, toBufferOrder(buffer, value));
+			} else if (BIG_ENDIAN != null && aligned(index, PageImpl.LONG_SIZE)) {
+				handles(buffer).setLongRelease.invokeExact(buffer, index, value);
+			} else {
+				LOCK.lock();
+				try {
+					buffer.putLong(index, value);
+				} finally {
+					LOCK.unlock();
+				}
+			}
+		} catch (Throwable ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	/**
+	 * load with acquire semantics, pairs with putOrderedLong
+	 */
+	static long getLongVolatile(ByteBuffer buffer, int index) {
+		try {
+			if (!buffer.isDirect()) {
+				synchronized (buffer) {
+					return buffer.getLong(index);
+				}
+			} else if (GET_LONG_VOLATILE != null) {
+				checkIndex(buffer, index, PageImpl.LONG_SIZE);
+				return toBufferOrder(buffer, (long) GET_LONG_VOLATILE.invokeExact((Object) null, address(buffer) + index));
+			} else if (BIG_ENDIAN != null && aligned(index, PageImpl.LONG_SIZE)) {
+				return (long) handles(buffer).getLongAcquire.invokeExact(buffer, index);
+			}
+			LOCK.lock();
+			try {
+				return buffer.getLong(index);
+			} finally {
+				LOCK.unlock();
+			}
+		} catch (Throwable ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	/**
+	 * atomically set the long at index to update if it has the expected value
+	 */
+	static boolean compareAndSwapLong(ByteBuffer buffer, int index, long expect, long update) {
+		try {
+			if (!buffer.isDirect()) {
+				synchronized (buffer) {
+					return swap(buffer, index, expect, update);
+				}
+			} else if (COMPARE_AND_SWAP_LONG != null) {
+				checkIndex(buffer, index, PageImpl.LONG_SIZE);
+				return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address(buffer) + index,
+						toBufferOrder(buffer, expect), toBufferOrder(buffer, update));
+			} else if (BIG_ENDIAN != null && aligned(index, PageImpl.LONG_SIZE)) {
+				return (boolean) handles(buffer).compareAndSetLong.invokeExact(buffer, index, expect, update);
+			}
+			LOCK.lock();
+			try {
+				return swap(buffer, index, expect, update);
+			} finally {
+				LOCK.unlock();
+			}
+		} catch (Throwable ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	// the compare and swap of the locked accesses
+	private static boolean swap(ByteBuffer buffer, int index, long expect, long update) {
+		if (buffer.getLong(index) != expect) {
+			return false;
+		}
+		buffer.putLong(index, update);
+		return true;
+	}
+
+	/**
+	 * store with volatile semantics, the store is visible to all following volatile loads
+	 */
+	static void putIntVolatile(ByteBuffer buffer, int index, int value) {
+		try {
+			if (!buffer.isDirect()) {
+				synchronized (buffer) {
+					buffer.putInt(index, value);
+				}
+			} else if (PUT_INT_VOLATILE != null) {
+				checkIndex(buffer, index, PageImpl.INT_SIZE);
+				PUT_INT_VOLATILE.invokeExact((Object) null, address(buffer) + index, toBufferOrder(buffer, value));
+			} else if (BIG_ENDIAN != null && aligned(index, PageImpl.INT_SIZE)) {
+				handles(buffer).setIntVolatile.invokeExact(buffer, index, value);
+			} else {
+				LOCK.lock();
+				try {
+					buffer.putInt(index, value);
+				} finally {
+					LOCK.unlock();
+				}
+			}
+		} catch (Throwable ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	/**
+	 * load with volatile semantics, pairs with putIntVolatile
+	 */
+	static int getIntVolatile(ByteBuffer buffer, int index) {
+		try {
+			if (!buffer.isDirect()) {
+				synchronized (buffer) {
+					return buffer.getInt(index);
+				}
+			} else if (GET_INT_VOLATILE != null) {
+				checkIndex(buffer, index, PageImpl.INT_SIZE);
+				return toBufferOrder(buffer, (int) GET_INT_VOLATILE.invokeExact((Object) null, address(buffer) + index));
+			} else if (BIG_ENDIAN != null && aligned(index, PageImpl.INT_SIZE)) {
+				return (int) handles(buffer).getIntVolatile.invokeExact(buffer, index);
+			}
+			LOCK.lock();
+			try {
+				return buffer.getInt(index);
+			} finally {
+				LOCK.unlock();
+			}
+		} catch (Throwable ex) {
+			throw rethrow(ex);
+		}
+	}
+
+	// the var handles only allow aligned accesses, the mappings start at a page boundary so the
+	// index is enough, the records of older pages are not aligned
+	private static boolean aligned(int index, int size) {
+		return (index & (size - 1)) == 0;
+	}
+
+	private static ViewHandles handles(ByteBuffer buffer) {
+		return buffer.order() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN : LITTLE_ENDIAN;
+	}
+
+	private static long address(ByteBuffer buffer) throws Throwable {
+		return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+	}
+
+	private static RuntimeException rethrow(Throwable ex) {
+		if (ex instanceof RuntimeException) {
+			return (RuntimeException) ex;
+		}
+		if (ex instanceof Error) {
+			throw (Error) ex;
+		}
+		return new CacheException("error accessing the buffer", ex);
+	}
+
+	private static void checkIndex(ByteBuffer buffer, int index, int size) {
+		if (index < 0 || index + size > buffer.capacity()) {
+			throw new IndexOutOfBoundsException("index " + index + " capacity " + buffer.capacity());
+		}
+	}
+
+	// unsafe uses the native byte order
+	private static long toBufferOrder(ByteBuffer buffer, long value) {
+		return buffer.order() == ByteOrder.nativeOrder() ? value : Long.reverseBytes(value);
+	}
+
+	private static int toBufferOrder(ByteBuffer buffer, int value) {
+		return buffer.order() == ByteOrder.nativeOrder() ? value : Integer.reverseBytes(value);
+	}
+
+	/**
+	 * the accesses of a byte buffer view var handle for one byte order, the var handles are
+	 * looked up reflectively since they need java 9, their method handles take the buffer and
+	 * the index like the buffer methods
+	 */
+	private static final class ViewHandles {
+		final MethodHandle setLongRelease;
+		final MethodHandle getLongAcquire;
+		final MethodHandle compareAndSetLong;
+		final MethodHandle setIntVolatile;
+		final MethodHandle getIntVolatile;
+
+		private ViewHandles(Object longs, Object ints, Method toMethodHandle, Class<?> accessMode) throws Exception {
+			setLongRelease = handle(longs, toMethodHandle, accessMode, "SET_RELEASE",
+					MethodType.methodType(void.class, ByteBuffer.class, int.class, long.class));
+			getLongAcquire = handle(longs, toMethodHandle, accessMode, "GET_ACQUIRE",
+					MethodType.methodType(long.class, ByteBuffer.class, int.class));
+			compareAndSetLong = handle(longs, toMethodHandle, accessMode, "COMPARE_AND_SET",
+					MethodType.methodType(boolean.class, ByteBuffer.class, int.class, long.class, long.class));
+			setIntVolatile = handle(ints, toMethodHandle, accessMode, "SET_VOLATILE",
+					MethodType.methodType(void.class, ByteBuffer.class, int.class, int.class));
+			getIntVolatile = handle(ints, toMethodHandle, accessMode, "GET_VOLATILE",
+					MethodType.methodType(int.class, ByteBuffer.class, int.class));
+		}
+
+		// null before java 9
+		static ViewHandles of(ByteOrder order) {
+			try {
+				Method view = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class);
+				Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+				Class<?> accessMode = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+				Method toMethodHandle = varHandle.getMethod("toMethodHandle", accessMode);
+				return new ViewHandles(view.invoke(null, long[].class, order), view.invoke(null, int[].class, order),
+						toMethodHandle, accessMode);
+			} catch (Exception ex) {
+				return null;
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static MethodHandle handle(Object varHandle, Method toMethodHandle, Class<?> accessMode,
+				String mode, MethodType type) throws Exception {
+			MethodHandle handle = (MethodHandle) toMethodHandle.invoke(varHandle, Enum.valueOf((Class) accessMode, mode));
+			return handle.asType(type);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package net.wohlfart.filebuffer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import it.unimi.dsi.fastutil.longs.LongHeapSemiIndirectPriorityQueue;
+
+/**
+ * reads several cursors at once and returns their chunks in timestamp order, for the replay
+ * of partitions or buffers that were written independently, each cursor must return its
+ * chunks in timestamp order
+ *
+ * the pages only index some of the chunks, so the timestamp of a chunk is taken from its
+ * payload by the timestamps function, the chunks are views of their pages so the function
+ * must read with absolute gets starting at the position and not move the position
+ *
+ * the next chunk of every cursor is peeked in the view of that cursor and the cursors are
+ * ordered in a heap of their timestamps, nothing is allocated per chunk, a cursor only
+ * moves past its chunk when the chunk is returned so a named cursor that is opened again
+ * continues with its first chunk that wasn't returned, chunks with the same timestamp are
+ * returned in no particular order
+ */
+public class MergeCursor implements Closeable {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final ICursor[] sources;
+	private final ToLongFunction<ByteBuffer> timestamps;
+	// the timestamp of the next chunk of each cursor, the heap only holds cursors with a chunk
+	private final long[] keys;
+	private final boolean[] queued;
+	private final LongHeapSemiIndirectPriorityQueue queue;
+	private int waiting;
+	// the first cursor in the heap returned its chunk and has to move on
+	private boolean advance;
+	private boolean waitForAll;
+	private long timestamp = Long.MIN_VALUE;
+	private int source = -1;
+
+	public MergeCursor(List<? extends ICursor> sources, ToLongFunction<ByteBuffer> timestamps) {
+		this.sources = sources.toArray(new ICursor[sources.size()]);
+		this.timestamps = timestamps;
+		this.keys = new long[this.sources.length];
+		this.queued = new boolean[this.sources.length];
+		this.queue = new LongHeapSemiIndirectPriorityQueue(keys, this.sources.length);
+		this.waiting = this.sources.length;
+	}
+
+	/**
+	 * don't return a chunk while a cursor has no data, for tailing sources that are still
+	 * written, otherwise a cursor that falls behind can return chunks older than the last one
+	 */
+	public void setWaitForAll(boolean waitForAll) {
+		this.waitForAll = waitForAll;
+	}
+
+	/**
+	 * set the read position of all cursors to timestamp or shortly before
+	 */
+	public void setReadStart(long firstReadTimestamp) throws CacheException {
+		queue.clear();
+		for (int i = 0; i < sources.length; i++) {
+			sources[i].setReadStart(firstReadTimestamp);
+			queued[i] = false;
+		}
+		waiting = sources.length;
+		advance = false;
+		timestamp = Long.MIN_VALUE;
+		source = -1;
+	}
+
+	/**
+	 * the chunk with the lowest timestamp of all cursors in the view of its cursor, the view is
+	 * only valid until the next call, empty if there is no data
+	 */
+	public ByteBuffer dequeueView() throws CacheException {
+		if (advance) {
+			advance = false;
+			int first = queue.first();
+			if (next(first)) {
+				queue.changed();
+			} else {
+				queue.dequeue();
+				queued[first] = false;
+				waiting++;
+			}
+		}
+		for (int i = 0; waiting > 0 && i < sources.length; i++) {
+			if (!queued[i] && next(i)) {
+				queue.enqueue(i);
+				queued[i] = true;
+				waiting--;
+			}
+		}
+		if (queue.isEmpty() || (waitForAll && waiting > 0)) {
+			return EMPTY;
+		}
+		source = queue.first();
+		timestamp = keys[source];
+		advance = true;
+		// the peeked chunk, now the cursor moves past it
+		return sources[source].dequeueView();
+	}
+
+	/**
+	 * passes up to max chunks in timestamp order to the consumer, the chunks are only valid
+	 * in the consumer, returns the number of chunks
+	 */
+	public int dequeue(int max, Consumer<? super ByteBuffer> consumer) throws CacheException {
+		int count = 0;
+		while (count < max) {
+			ByteBuffer chunk = dequeueView();
+			if (!chunk.hasRemaining()) {
+				break;
+			}
+			consumer.accept(chunk);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * the timestamp of the last returned chunk
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * the index of the cursor of the last returned chunk
+	 */
+	public int getSource() {
+		return source;
+	}
+
+	@Override
+	public void close() {
+		for (ICursor cursor : sources) {
+			cursor.close();
+		}
+	}
+
+	// peek at the next chunk of the cursor, false if it has no data yet
+	private boolean next(int index) {
+		ByteBuffer chunk = sources[index].peekView();
+		if (!chunk.hasRemaining()) {
+			return false;
+		}
+		keys[index] = timestamps.applyAsLong(chunk);
+		return true;
+	}
+
+}
@@ -0,0 +1,23 @@
+package net.wohlfart.filebuffer;
+
+/**
+ * how the files of the pages are mapped into memory
+ */
+public enum PageBackend {
+
+	// mapped byte buffers, unmapped with the cleaner of the buffer
+	MAPPED_BUFFER,
+
+	// memory segments in shared arenas, needs java 22, a buffer access to an unmapped
+	// page fails with an exception instead of crashing the VM, the ordered header and
+	// size accesses use the raw address and are not checked
+	MEMORY_SEGMENT;
+
+	/**
+	 * false if the running VM doesn't support the backend
+	 */
+	public boolean isAvailable() {
+		return this == MAPPED_BUFFER || SegmentMapper.isAvailable();
+	}
+
+}
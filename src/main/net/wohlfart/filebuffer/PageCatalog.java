@@ -0,0 +1,258 @@
+package net.wohlfart.filebuffer;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectSortedMap;
+
+/**
+ * the closed pages of a cache directory, so we don't need to read the header of every page
+ * on startup
+ *
+ * the catalog is a log of fixed size records, each record adds or removes a page and ends
+ * with a checksum, a record is appended with a single write when a page is closed,
+ * a torn record at the end of the log is ignored, any other broken record makes the
+ * whole catalog invalid, the log is compacted when it is loaded
+ */
+class PageCatalog {
+
+	static final String CATALOG_FILENAME = "pages.catalog";
+	private static final String TEMP_POSTFIX = ".tmp";
+
+	private static final int ADDED = 1;
+	private static final int REMOVED = 2;
+
+	// timestamp, index, last timestamp, limit, file, file offset, file size, flags, type, checksum
+	static final int RECORD_SIZE = 6 * PageImpl.LONG_SIZE + 4 * PageImpl.INT_SIZE;
+
+	private final File catalogFile;
+
+	// the records are written by the closing writer, a lock doesn't pin a virtual thread
+	// during the write like a monitor
+	private final Lock lock = new ReentrantLock();
+	// guarded by lock
+	private FileChannel log;
+
+	PageCatalog(File cacheDir) {
+		this.catalogFile = new File(cacheDir, CATALOG_FILENAME);
+	}
+
+	/**
+	 * the closed pages mapped by their timestamp or null if the catalog is missing or invalid,
+	 * a valid catalog is compacted
+	 */
+	Long2ObjectSortedMap<Entry> load() {
+		lock.lock();
+		try {
+			if (!catalogFile.exists()) {
+				return null;
+			}
+			Long2ObjectSortedMap<Entry> result = read();
+			if (result != null) {
+				write(result);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * start a new catalog with the given pages, used after the catalog was found invalid
+	 */
+	void reset(Iterable<Entry> entries) {
+		Long2ObjectSortedMap<Entry> map = new Long2ObjectAVLTreeMap<>();
+		for (Entry entry : entries) {
+			map.put(entry.timestamp, entry);
+		}
+		lock.lock();
+		try {
+			write(map);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void added(Entry entry) {
+		lock.lock();
+		try {
+			append(entry, ADDED);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void removed(long timestamp) {
+		lock.lock();
+		try {
+			append(new Entry(timestamp, 0, timestamp, 0, 0, 0, 0, 0), REMOVED);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void close() {
+		lock.lock();
+		try {
+			if (log != null) {
+				log.close();
+			}
+		} catch (IOException ex) {
+			throw new CacheException("error closing catalog, file: '" + catalogFile + "'", ex);
+		} finally {
+			log = null;
+			lock.unlock();
+		}
+	}
+
+	private Long2ObjectSortedMap<Entry> read() {
+		Long2ObjectSortedMap<Entry> result = new Long2ObjectAVLTreeMap<>();
+		try (FileChannel channel = FileChannel.open(catalogFile.toPath(), READ)) {
+			ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+			while (content.hasRemaining() && channel.read(content) > 0) {
+				// read the whole catalog
+			}
+			content.flip();
+			while (content.remaining() >= RECORD_SIZE) {
+				int start = content.position();
+				Entry entry = new Entry(content.getLong(), content.getLong(), content.getLong(),
+						content.getLong(), content.getLong(), content.getLong(), content.getInt(), content.getInt());
+				int type = content.getInt();
+				int checksum = content.getInt();
+				if (checksum != checksum(content, start)) {
+					if (content.remaining() == 0) {
+						break; // torn write of the last record
+					}
+					return null;
+				}
+				if (type == ADDED) {
+					result.put(entry.timestamp, entry);
+				} else if (type == REMOVED) {
+					result.remove(entry.timestamp);
+				} else {
+					return null;
+				}
+			}
+			return result;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	// write a compacted catalog and replace the old one
+	private void write(Long2ObjectSortedMap<Entry> entries) {
+		close();
+		File tempFile = new File(catalogFile.getPath() + TEMP_POSTFIX);
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+			ByteBuffer content = ByteBuffer.allocate(entries.size() * RECORD_SIZE);
+			for (Entry entry : entries.values()) {
+				put(content, entry, ADDED);
+			}
+			content.flip();
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+			channel.force(true);
+		} catch (IOException ex) {
+			throw new CacheException("error writing catalog, file: '" + tempFile + "'", ex);
+		}
+		try {
+			Files.move(tempFile.toPath(), catalogFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (IOException ex) {
+			throw new CacheException("error replacing catalog, file: '" + catalogFile + "'", ex);
+		}
+	}
+
+	private void append(Entry entry, int type) {
+		try {
+			if (log == null) {
+				log = FileChannel.open(catalogFile.toPath(), CREATE, WRITE, APPEND);
+			}
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			put(record, entry, type);
+			record.flip();
+			while (record.hasRemaining()) {
+				log.write(record);
+			}
+		} catch (IOException ex) {
+			throw new CacheException("error writing catalog, file: '" + catalogFile + "'", ex);
+		}
+	}
+
+	private static void put(ByteBuffer buffer, Entry entry, int type) {
+		int start = buffer.position();
+		buffer.putLong(entry.timestamp);
+		buffer.putLong(entry.index);
+		buffer.putLong(entry.lastTimestamp);
+		buffer.putLong(entry.limit);
+		buffer.putLong(entry.file);
+		buffer.putLong(entry.fileOffset);
+		buffer.putInt(entry.fileSize);
+		buffer.putInt(entry.flags);
+		buffer.putInt(type);
+		buffer.putInt(checksum(buffer, start));
+	}
+
+	// checksum of the record starting at start, without the checksum itself
+	private static int checksum(ByteBuffer buffer, int start) {
+		CRC32 crc = new CRC32();
+		int end = start + RECORD_SIZE - PageImpl.INT_SIZE;
+		for (int i = start; i < end; i++) {
+			crc.update(buffer.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * what we know about a closed page
+	 */
+	static class Entry {
+		final long timestamp;
+		final long index;
+		final long lastTimestamp;
+		final long limit;
+		// the name of the file and the start of the page in the file
+		final long file;
+		final long fileOffset;
+		final int fileSize;
+		final int flags;
+
+		Entry(long timestamp, long index, long lastTimestamp, long limit,
+				long file, long fileOffset, int fileSize, int flags) {
+			this.timestamp = timestamp;
+			this.index = index;
+			this.lastTimestamp = lastTimestamp;
+			this.limit = limit;
+			this.file = file;
+			this.fileOffset = fileOffset;
+			this.fileSize = fileSize;
+			this.flags = flags;
+		}
+
+		static Entry of(IPage page) {
+			return new Entry(page.getTimestamp(), page.getIndex(), page.getLastTimestamp(), page.getLimit(),
+					Long.parseLong(page.getFile().getName()), page.getFileOffset(), page.getFileSize(),
+					page.getFlags());
+		}
+
+		PageMetadata toMetadata() {
+			return new PageMetadata(index, timestamp, lastTimestamp, limit, fileSize, flags);
+		}
+	}
+
+}
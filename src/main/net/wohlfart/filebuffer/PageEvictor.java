@@ -0,0 +1,78 @@
+package net.wohlfart.filebuffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * background thread removing old pages, runs the handler's eviction periodically and
+ * whenever a new write page was created so the writer never deletes files itself
+ */
+class PageEvictor implements Runnable {
+
+	private final PageHandler pageHandler;
+	private final long intervalNanos;
+	private final Thread thread;
+
+	// guarded by this
+	private boolean triggered;
+	private boolean running = true;
+
+	PageEvictor(PageHandler pageHandler, long intervalMillis) {
+		this.pageHandler = pageHandler;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.thread = new Thread(this, "page-evictor");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * run the eviction as soon as possible
+	 */
+	synchronized void trigger() {
+		triggered = true;
+		notifyAll();
+	}
+
+	/**
+	 * stop the thread, a running eviction is finished first
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				long deadline = System.nanoTime() + intervalNanos;
+				while (running && !triggered && deadline - System.nanoTime() > 0) {
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+					} catch (InterruptedException ex) {
+						running = false;
+					}
+				}
+				if (!running) {
+					return;
+				}
+				triggered = false;
+			}
+			try {
+				pageHandler.evict();
+			} catch (CacheException ex) {
+				// try again with the next round
+			}
+		}
+	}
+
+}
@@ -1,16 +1,47 @@
 package net.wohlfart.filebuffer;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectSortedMap;
+
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
-public class PageFactory implements IPageFactory {
+/**
+ * creates the pages in the cache directory
+ *
+ * with a pool size above 0 a background thread keeps a small pool of spare files that are
+ * already created, mapped and touched, a new page just renames a spare file so a page rollover
+ * doesn't wait for the file system, the factory must be closed to stop the thread and remove
+ * the spare files, the page handler closes its factory
+ */
+public class PageFactory implements IPageFactory, Closeable {
 	
     private static final int DEFAULT_FILE_SIZE = 1024 * 500;
+    private static final int DEFAULT_POOL_SIZE = 0;
+    private static final String SPARE_POSTFIX = ".spare";
+    private static final Pattern PAGE_FILENAME_PATTERN = Pattern.compile("-?[0-9]+");
     private static final String TIMESTAMP_FORMAT = "yyyy.MM.dd-HH:mm:ss-SSS-z"; // we always use UTC
     private static final String FILENAME_POSTFIX = ".page";
     private static final Pattern FILENAME_PATTERN = Pattern.compile("(" + TIMESTAMP_FORMAT + ")" + FILENAME_POSTFIX);
@@ -19,6 +50,31 @@ public class PageFactory implements IPageFactory {
 	
 	private int filesize = DEFAULT_FILE_SIZE;
 	private File cacheDir = new File("/tmp");
+	private boolean singleWriter = false;
+	private int poolSize = DEFAULT_POOL_SIZE;
+	private int segmentsPerFile = 1;
+	private Compression compression = Compression.NONE;
+	private int blockSize = PageImpl.DEFAULT_BLOCK_SIZE;
+	private boolean checksums = false;
+	private IMetrics metrics = IMetrics.NONE;
+	// without a budget a mapping is removed with its last view
+	private MappedRegionCache regionCache = new MappedRegionCache(0);
+	private Mapper mapper = Mapper.BUFFERS;
+
+	// the file for the next segment, guarded by this
+	private File currentFile;
+	private int currentSegments;
+	private int currentSegmentSize;
+	// the evicted pages of each file that are still read and the files whose last segment
+	// was evicted, a file is deleted when both apply and no reader is left, guarded by this
+	private final Map<File, Integer> evictedPages = new HashMap<>();
+	private final Set<File> evictedFiles = new HashSet<>();
+
+	private volatile BlockingQueue<SparePage> sparePages;
+	private ExecutorService preparer;
+	private final AtomicBoolean preparing = new AtomicBoolean();
+	private final AtomicLong spareCount = new AtomicLong();
+	private PageCatalog catalog;
 
 	@Override
 	public void setFilesize(int size) {
@@ -30,20 +86,415 @@ public class PageFactory implements IPageFactory {
 		this.cacheDir = new File(cacheDir);
 	}
 		
+	@Override
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	@Override
+	public void setSingleWriter(boolean singleWriter) {
+		this.singleWriter = singleWriter;
+	}
+
+	/**
+	 * number of pages in one file, with more than one page the pages are segments of a large
+	 * file that is extended for each new page, this reduces the number of files but not the
+	 * number of mappings since each segment is mapped on its own, the evicted segments of a
+	 * file are removed together with the last segment
+	 */
+	public void setSegmentsPerFile(int segmentsPerFile) {
+		this.segmentsPerFile = segmentsPerFile;
+	}
+
+	/**
+	 * compression for the chunks of new pages, existing pages keep their format
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * the uncompressed size of a compressed block, a larger block compresses better but
+	 * delays the chunks until the block is written
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * store a checksum with each chunk of new pages, without checksums the recovery only
+	 * keeps the chunks up to the published limit of a page
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	@Override
+	public void setMetrics(IMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * share the read mappings of the pages up to the given number of mapped bytes, readers
+	 * seeking back and forth or replaying old pages don't map the files again, 0 to keep
+	 * a mapping only as long as a reader uses it, call before the pages are created
+	 */
+	public void setReadCacheSize(long maxBytes) {
+		this.regionCache = new MappedRegionCache(Math.max(0, maxBytes));
+	}
+
+	/**
+	 * how the pages are mapped, memory segments need java 22, call before the pages are created
+	 */
+	public void setBackend(PageBackend backend) {
+		this.mapper = backend == PageBackend.MEMORY_SEGMENT ? new SegmentMapper() : Mapper.BUFFERS;
+	}
+
+	MappedRegionCache getRegionCache() {
+		return regionCache;
+	}
+
+	/**
+	 * number of spare files prepared in the background, 0 to create files on demand, the
+	 * default since the spare files count against the disk budget and need a closed factory
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * returns a page that still needs createWriteBuffer(), the page is the next segment of the
+	 * current file or a new file, if there is a spare file a new file is just a rename
+	 */
 	@Override
 	public IPage create(long timestamp) {
-		File file = new File(cacheDir, String.valueOf(timestamp));
-		return new PageImpl(file, filesize);
+		return create(timestamp, timestamp);
 	}
 
+	/**
+	 * the key names the page and its file, the timestamp of the first chunk is kept in the header
+	 */
 	@Override
-	public Set<IPage> getPages() {
+	public IPage create(long key, long timestamp) {
+		PageImpl page = nextSegment(key);
+		if (page == null) {
+			File file = new File(cacheDir, String.valueOf(key));
+			page = fromSparePage(file, key);
+			if (page == null) {
+				page = new PageImpl(file, filesize, key);
+			}
+			startFile(file);
+			prepareSparePages();
+		}
+		page.setFirstTimestamp(timestamp);
+		page.setSingleWriter(singleWriter);
+		page.setCompression(compression);
+		page.setBlockSize(blockSize);
+		page.setChecksums(checksums);
+		page.setMetrics(metrics);
+		page.setRegionCache(regionCache);
+		page.setMapper(mapper);
+		return page;
+	}
+
+	// a page after the last page in the current file or null if the file is full
+	private synchronized PageImpl nextSegment(long timestamp) {
+		// the header of a segment must be aligned like the header of a file
+		if (currentFile == null || currentSegments >= segmentsPerFile || currentSegmentSize != filesize
+				|| filesize % PageImpl.LONG_SIZE != 0) {
+			return null;
+		}
+		long fileOffset = (long) currentSegments * filesize;
+		currentSegments++;
+		return new PageImpl(currentFile, fileOffset, filesize, timestamp);
+	}
+
+	private synchronized void startFile(File file) {
+		currentFile = file;
+		currentSegments = 1;
+		currentSegmentSize = filesize;
+	}
+
+	/**
+	 * the existing pages, pages found in the catalog are created without reading their header,
+	 * pages missing in the catalog are added to it, if the catalog is invalid it is rebuilt
+	 * from the headers of all pages
+	 *
+	 * a page missing in the catalog was not closed, it is recovered before it is added, the
+	 * pages are recovered in parallel since each one is a scan over all its chunks
+	 */
+	@Override
+	public synchronized Set<IPage> getPages() {
 		Set<IPage> result = new HashSet<>();
-		File[] files = cacheDir.listFiles();
+		File[] files = cacheDir.listFiles(
+				file -> PAGE_FILENAME_PATTERN.matcher(file.getName()).matches());
+		if (files == null) {
+			return result;
+		}
+		Long2ObjectSortedMap<PageCatalog.Entry> entries = catalog().load();
+		// the catalogued pages of each file by their offset
+		Map<Long, Long2ObjectSortedMap<PageCatalog.Entry>> fileEntries = new HashMap<>();
+		if (entries != null) {
+			for (PageCatalog.Entry entry : entries.values()) {
+				fileEntries.computeIfAbsent(entry.file, key -> new Long2ObjectAVLTreeMap<>())
+						.put(entry.fileOffset, entry);
+			}
+		}
+		List<PageImpl> uncatalogued = new ArrayList<>();
 		for (File file : files) {
-			result.add(new PageImpl(file));
+			Long2ObjectSortedMap<PageCatalog.Entry> segments = fileEntries.get(Long.parseLong(file.getName()));
+			long length = file.length();
+			int segmentSize = segmentSize(file, length, segments);
+			for (long offset = 0; offset + segmentSize <= length; offset += segmentSize) {
+				PageCatalog.Entry entry = segments == null ? null : segments.get(offset);
+				PageImpl page;
+				if (entry != null) {
+					page = new PageImpl(file, offset, entry.fileSize, entry.toMetadata());
+				} else {
+					page = new PageImpl(file, offset, segmentSize);
+					if (page.getLimit() < PageMetadata.dataOffset(segmentSize)) {
+						// the segment was never initialized
+						continue;
+					}
+					uncatalogued.add(page);
+				}
+				page.setSingleWriter(singleWriter);
+				page.setRegionCache(regionCache);
+				page.setMapper(mapper);
+				result.add(page);
+			}
+		}
+		uncatalogued.parallelStream().forEach(PageImpl::recover);
+		List<PageCatalog.Entry> added = new ArrayList<>();
+		for (PageImpl page : uncatalogued) {
+			added.add(PageCatalog.Entry.of(page));
+		}
+		if (entries == null) {
+			catalog().reset(added);
+		} else {
+			for (PageCatalog.Entry entry : added) {
+				catalog().added(entry);
+			}
+		}
+		return result;
+	}
+
+	// the catalog or the header of the first segment knows the size of the segments, a file
+	// written before the size was stored is either a single page or it has segments of the
+	// configured size
+	private int segmentSize(File file, long length, Long2ObjectSortedMap<PageCatalog.Entry> segments) {
+		if (segments != null) {
+			return segments.get(segments.firstLongKey()).fileSize;
+		}
+		int stored = storedSegmentSize(file);
+		if (stored > PageMetadata.METADATA_SIZE && stored <= length) {
+			return stored;
+		}
+		if (length > filesize && length % filesize == 0) {
+			return filesize;
+		}
+		if (length > Integer.MAX_VALUE || length == 0) {
+			throw new CacheException("can't find the segment size, file: '" + file + "'");
+		}
+		return (int) length;
+	}
+
+	private int storedSegmentSize(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(PageMetadata.METADATA_SIZE);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+				// read until the header is complete
+			}
+			return header.hasRemaining() ? 0 : PageMetadata.getFileSize(header);
+		} catch (IOException ex) {
+			throw new CacheException("error reading header, file: '" + file + "'", ex);
+		}
+	}
+
+	/**
+	 * record the final metadata of a closed page in the catalog
+	 */
+	@Override
+	public void pageClosed(IPage page) {
+		catalog().added(PageCatalog.Entry.of(page));
+	}
+
+	/**
+	 * remove the page from the catalog and delete its file, open read views pin the page so the
+	 * file is deleted when the last reader of the page released its view, a file with segments
+	 * is deleted with its last segment once none of its segments is read, the pages are evicted
+	 * oldest first so the other segments are already gone, returns false if the file couldn't
+	 * be deleted right away
+	 */
+	@Override
+	public boolean delete(IPage page) {
+		catalog().removed(page.getTimestamp());
+		File file = page.getFile();
+		synchronized (this) {
+			evictedPages.merge(file, 1, Integer::sum);
+			if (page.getFileOffset() + page.getFileSize() >= file.length()) {
+				evictedFiles.add(file);
+			}
+		}
+		AtomicBoolean deleted = new AtomicBoolean(true);
+		regionCache.invalidate(page, () -> deleted.set(released(file)));
+		return deleted.get();
+	}
+
+	// an evicted page of the file has no reader anymore
+	private synchronized boolean released(File file) {
+		int pages = evictedPages.get(file) - 1;
+		if (pages > 0) {
+			evictedPages.put(file, pages);
+			return true;
+		}
+		evictedPages.remove(file);
+		if (!evictedFiles.remove(file)) {
+			return true;
+		}
+		return file.delete();
+	}
+
+	private synchronized PageCatalog catalog() {
+		if (catalog == null) {
+			catalog = new PageCatalog(cacheDir);
+		}
+		return catalog;
+	}
+
+	/**
+	 * the size of the spare files that are ready, the file that is being prepared isn't counted
+	 */
+	@Override
+	public long getSpareSize() {
+		BlockingQueue<SparePage> localSparePages = sparePages;
+		if (localSparePages == null) {
+			return 0;
+		}
+		long result = 0;
+		for (SparePage sparePage : localSparePages) {
+			result += sparePage.buffer.capacity();
 		}
 		return result;
 	}
 
+	/**
+	 * stop preparing spare files and remove the unused ones, a running preparer finishes
+	 * its file first
+	 */
+	@Override
+	public synchronized void close() {
+		if (catalog != null) {
+			catalog.close();
+		}
+		regionCache.close();
+		if (preparer != null) {
+			preparer.shutdownNow();
+			awaitTermination(preparer);
+			preparer = null;
+		}
+		if (sparePages != null) {
+			SparePage sparePage;
+			while ((sparePage = sparePages.poll()) != null) {
+				sparePage.mapper.unmap(sparePage.buffer);
+				sparePage.file.delete();
+			}
+			// the file of an interrupted preparer
+			removeSpareFiles();
+		}
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private PageImpl fromSparePage(File file, long timestamp) {
+		if (sparePages == null) {
+			return null;
+		}
+		SparePage sparePage;
+		while ((sparePage = sparePages.poll()) != null) {
+			if (sparePage.buffer.capacity() != filesize || sparePage.mapper != mapper) {
+				// the filesize or the backend changed since the file was prepared
+				sparePage.mapper.unmap(sparePage.buffer);
+				sparePage.file.delete();
+				continue;
+			}
+			if (file.exists() || !sparePage.file.renameTo(file)) {
+				sparePage.file.delete();
+				throw new CacheException("can't rename spare file to '" + file + "'");
+			}
+			return new PageImpl(file, timestamp, sparePage.buffer);
+		}
+		return null;
+	}
+
+	// refill the pool in the background, at most one task is running
+	private synchronized void prepareSparePages() {
+		if (poolSize <= 0) {
+			return;
+		}
+		if (preparer == null) {
+			sparePages = new ArrayBlockingQueue<>(poolSize);
+			removeSpareFiles();
+			preparer = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "page-preparer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		if (preparing.compareAndSet(false, true)) {
+			final BlockingQueue<SparePage> queue = sparePages;
+			final int size = filesize;
+			final Mapper spareMapper = mapper;
+			preparer.execute(() -> {
+				try {
+					while (queue.remainingCapacity() > 0 && !Thread.currentThread().isInterrupted()) {
+						File file = new File(cacheDir, spareCount.incrementAndGet() + SPARE_POSTFIX);
+						queue.offer(new SparePage(file, PageImpl.prepareWriteBuffer(file, size, spareMapper), spareMapper));
+					}
+				} catch (CacheException ex) {
+					// no spare file this time, pages are created on demand
+				} finally {
+					preparing.set(false);
+				}
+			});
+		}
+	}
+
+	// spare files from a previous run
+	private void removeSpareFiles() {
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(SPARE_POSTFIX)) {
+				file.delete();
+			}
+		}
+	}
+
+	private static class SparePage {
+		final File file;
+		final MappedByteBuffer buffer;
+		final Mapper mapper;
+
+		SparePage(File file, MappedByteBuffer buffer, Mapper mapper) {
+			this.file = file;
+			this.buffer = buffer;
+			this.mapper = mapper;
+		}
+	}
+
 }
@@ -0,0 +1,156 @@
+package net.wohlfart.filebuffer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * background thread forcing the current write page to disk for the periodic
+ * and the group commit policy
+ *
+ * all sync requests that arrive while a force is running are collected and completed
+ * together by the next force, in periodic mode the requests wait for the next interval
+ */
+class PageFlusher implements Runnable {
+
+	private final Supplier<IPage> writePage;
+	private final DurabilityPolicy policy;
+	private final long intervalNanos;
+	private final long intervalBytes;
+
+	private final AtomicLong unforcedBytes = new AtomicLong();
+	private final Thread thread;
+
+	// guarded by this
+	private CompletableFuture<Void> pending;
+	private boolean running = true;
+
+	PageFlusher(Supplier<IPage> writePage, DurabilityPolicy policy, long intervalMillis, long intervalBytes) {
+		this.writePage = writePage;
+		this.policy = policy;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.intervalBytes = intervalBytes;
+		this.thread = new Thread(this, "page-flusher");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * returns a future that completes when all data written before this call is on disk
+	 */
+	synchronized CompletableFuture<Void> sync() {
+		if (!running) {
+			CompletableFuture<Void> result = new CompletableFuture<>();
+			result.completeExceptionally(new CacheException("flusher is closed"));
+			return result;
+		}
+		if (pending == null) {
+			pending = new CompletableFuture<>();
+			if (!timed()) {
+				notifyAll();
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * count the bytes written, in periodic mode the flusher is woken up
+	 * when the byte interval is reached
+	 */
+	void written(long bytes) {
+		long before = unforcedBytes.getAndAdd(bytes);
+		if (intervalBytes > 0 && before < intervalBytes && before + bytes >= intervalBytes) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * force the outstanding data and stop the thread
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		boolean stopping = false;
+		while (!stopping) {
+			CompletableFuture<Void> batch;
+			synchronized (this) {
+				long deadline = System.nanoTime() + intervalNanos;
+				while (running && !due(deadline)) {
+					waitUntil(deadline);
+				}
+				stopping = !running;
+				batch = pending;
+				pending = null;
+			}
+			force(batch);
+		}
+	}
+
+	// the periodic policy with a time interval serves sync requests with the next interval
+	private boolean timed() {
+		return policy == DurabilityPolicy.PERIODIC && intervalNanos > 0;
+	}
+
+	// guarded by this
+	private boolean due(long deadline) {
+		if (intervalBytes > 0 && unforcedBytes.get() >= intervalBytes) {
+			return true;
+		}
+		if (timed()) {
+			return System.nanoTime() - deadline >= 0;
+		}
+		return pending != null;
+	}
+
+	// guarded by this
+	private void waitUntil(long deadline) {
+		try {
+			if (!timed()) {
+				wait();
+			} else {
+				long nanos = deadline - System.nanoTime();
+				if (nanos > 0) {
+					TimeUnit.NANOSECONDS.timedWait(this, nanos);
+				}
+			}
+		} catch (InterruptedException ex) {
+			running = false;
+		}
+	}
+
+	private void force(CompletableFuture<Void> batch) {
+		try {
+			if (unforcedBytes.getAndSet(0) > 0 || batch != null) {
+				IPage page = writePage.get();
+				if (page != null) {
+					page.forceWriteBuffer();
+				}
+			}
+			if (batch != null) {
+				batch.complete(null);
+			}
+		} catch (RuntimeException ex) {
+			if (batch != null) {
+				batch.completeExceptionally(ex);
+			}
+		}
+	}
+
+}
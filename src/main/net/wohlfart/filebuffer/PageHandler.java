@@ -1,17 +1,50 @@
 package net.wohlfart.filebuffer;
 
+import java.io.Closeable;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import it.unimi.dsi.fastutil.longs.Long2ObjectAVLTreeMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectSortedMap;
 
-public class PageHandler implements IPageHandler {
+/**
+ * keeps the pages of the cache directory sorted by their timestamp
+ *
+ * old pages are removed by a background thread if retention is configured, pages are evicted
+ * from the oldest when the total size exceeds the disk budget, when their last timestamp is
+ * older than the maximum age or, if enabled, when all registered consumers have moved past them,
+ * the current write page is never evicted
+ */
+public class PageHandler implements IPageHandler, Closeable {
+
+	private static final long DEFAULT_RETENTION_INTERVAL = 1000;
 
 	private IPageFactory pageFactory;
 	
-    // mapping the timestamp to the page, should contains all pages in the cache directory
+    // mapping the timestamp to the page, should contains all pages in the cache directory,
+    // readers and writers share the handler so access is guarded by the lock, a lock instead
+    // of a monitor so a virtual thread that creates a page file doesn't pin its carrier
     private final Long2ObjectSortedMap<IPage> pageCache = new Long2ObjectAVLTreeMap<>();
+    private final Lock lock = new ReentrantLock();
+    // guarded by lock
+    private long diskSize;
+
+    // the timestamp of the page each consumer is reading
+    private final Map<String, Long> consumers = new ConcurrentHashMap<>();
+
+    private long maxDiskSize = 0;
+    private long maxAgeMillis = 0;
+    private boolean evictConsumed = false;
+    private long retentionIntervalMillis = DEFAULT_RETENTION_INTERVAL;
+    private PageEvictor evictor;
+    private ConsumerOffsets offsets;
+    private IMetrics metrics = IMetrics.NONE;
 
 
 	@Override
@@ -19,38 +52,130 @@ public class PageHandler implements IPageHandler {
 		this.pageFactory = pageFactory;
 	}
 
+	/**
+	 * receives the page rollovers, evictions and consumer lags, also passed to the page factory
+	 * for the force times, call after setPageFactory
+	 */
+	public void setMetrics(IMetrics metrics) {
+		this.metrics = metrics;
+		pageFactory.setMetrics(metrics);
+	}
+
+	/**
+	 * evict the oldest pages when the pages and the spare files of the page factory use more
+	 * than the given number of bytes, 0 for no limit
+	 */
+	public void setMaxDiskSize(long maxDiskSize) {
+		this.maxDiskSize = maxDiskSize;
+	}
+
+	/**
+	 * evict pages with a last timestamp older than the given age, 0 for no limit
+	 */
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * evict pages as soon as all registered consumers have moved past them
+	 */
+	public void setEvictConsumed(boolean evictConsumed) {
+		this.evictConsumed = evictConsumed;
+	}
+
+	public void setRetentionIntervalMillis(long retentionIntervalMillis) {
+		this.retentionIntervalMillis = retentionIntervalMillis;
+	}
+
 	public void init() {
-		Set<IPage> pages = pageFactory.getPages();
-		for (IPage page : pages) {
-			pageCache.put(page.getTimestamp(), page);
+		lock.lock();
+		try {
+			Set<IPage> pages = pageFactory.getPages();
+			for (IPage page : pages) {
+				pageCache.put(page.getTimestamp(), page);
+				diskSize += page.getFileSize();
+				PageMetadata.reservePageIndex(page.getIndex());
+			}
+			if (evictor == null && (maxDiskSize > 0 || maxAgeMillis > 0 || evictConsumed)) {
+				evictor = new PageEvictor(this, retentionIntervalMillis);
+				evictor.start();
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 	
+	/**
+	 * returns the last page if it is still open for writing, otherwise a new page is created,
+	 * closed pages are never reopened for writing
+	 */
 	@Override
 	public IPage getWritePage(long timestamp) {
-		if (pageCache.isEmpty()) {  // TODO: move this to init
-			pageCache.put(timestamp, pageFactory.create(timestamp));
+		lock.lock();
+		try {
+			if (!pageCache.isEmpty()) {
+				IPage page = pageCache.get(pageCache.lastLongKey());
+				if (page.getLastTimestamp() > timestamp) {
+					throw new CacheException("data is out of order");
+				}
+				if (page.hasWriteBuffer()) {
+					return page;
+				}
+			}
+			return createWritePage(timestamp);
+		} finally {
+			lock.unlock();
 		}
-		long last = pageCache.lastLongKey();
-		if (last > timestamp) {
-			throw new CacheException("data is out of order");
-		}	
-		IPage page = pageCache.get(last);
-		if (!page.hasWriteBuffer()) {
-			page.openWriteBuffer();
+	}
+
+	private IPage createWritePage(long timestamp) {
+		long key = timestamp;
+		if (!pageCache.isEmpty() && pageCache.lastLongKey() >= key) {
+			// page keys must be unique, the header and the index keep the real timestamps
+			key = pageCache.lastLongKey() + 1;
+		}
+		IPage page = pageFactory.create(key, timestamp);
+		page.createWriteBuffer();
+		pageCache.put(key, page);
+		diskSize += page.getFileSize();
+		metrics.pageCreated();
+		if (metrics != IMetrics.NONE) {
+			for (Map.Entry<String, Long> consumer : consumers.entrySet()) {
+				metrics.consumerLag(consumer.getKey(), lag(consumer.getValue()));
+			}
+		}
+		if (evictor != null) {
+			evictor.trigger();
 		}
 		return page;
 	}
 
+	/**
+	 * seal and close the page, readers move on to the next page when they reach the end
+	 */
 	@Override
 	public void closeWritePage(IPage writePage) {
-		writePage.closeWriteBuffer();
+		closeWritePage(writePage, true);
 	}
 
+	@Override
+	public void closeWritePage(IPage writePage, boolean force) {
+		writePage.sealWriteBuffer();
+		writePage.closeWriteBuffer(force);
+		pageFactory.pageClosed(writePage);
+	}
+
+	/**
+	 * find the last page that started before the timestamp and seek inside the page
+	 * using the page's timestamp index, returns null if there are no pages yet
+	 */
 	@Override
 	public IPage getReadPage(long firstReadTimestamp) {
-		// TODO Auto-generated method stub
-		return null;
+		IPage page = findPage(firstReadTimestamp);
+		if (page != null) {
+			page.openReadBuffer(firstReadTimestamp);
+		}
+		return page;
 	}
 
 	@Override
@@ -58,11 +183,217 @@ public class PageHandler implements IPageHandler {
 		readPage.closeReadBuffer();
 	}
 
+	/**
+	 * returns the page following readPage ready for reading from the start,
+	 * null if readPage is the last page
+	 */
 	@Override
 	public IPage getNextReadPage(IPage readPage) {
-		long key = readPage.getTimestamp();
-		// TODO
-		return null;
+		IPage page = getNextPage(readPage);
+		if (page != null) {
+			page.openReadBuffer();
+		}
+		return page;
+	}
+
+	/**
+	 * the last page that started before the timestamp or the first page, null if there are no pages
+	 */
+	@Override
+	public IPage findPage(long timestamp) {
+		lock.lock();
+		try {
+			if (pageCache.isEmpty()) {
+				return null;
+			}
+			Long2ObjectSortedMap<IPage> head = pageCache.headMap(timestamp);
+			long key = head.isEmpty() ? pageCache.firstLongKey() : head.lastLongKey();
+			return pageCache.get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * the page with the timestamp or the following page if it was evicted, null if there is none
+	 */
+	@Override
+	public IPage getPage(long pageTimestamp) {
+		lock.lock();
+		try {
+			Long2ObjectSortedMap<IPage> tail = pageCache.tailMap(pageTimestamp);
+			return tail.isEmpty() ? null : tail.get(tail.firstLongKey());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public IPage getNextPage(IPage page) {
+		return getPage(page.getTimestamp() + 1);
+	}
+
+	/**
+	 * a copy of the page range for a scan, starting with the page findPage returns
+	 * for fromTimestamp unless all its chunks are older, and ending with the last page
+	 * that started at or before toTimestamp
+	 */
+	@Override
+	public List<IPage> getPages(long fromTimestamp, long toTimestamp) {
+		lock.lock();
+		try {
+			IPage first = findPage(fromTimestamp);
+			if (first != null && first.getLastTimestamp() < fromTimestamp) {
+				first = getNextPage(first);
+			}
+			if (first == null || first.getTimestamp() > toTimestamp) {
+				return new ArrayList<>();
+			}
+			Long2ObjectSortedMap<IPage> range = toTimestamp == Long.MAX_VALUE
+					? pageCache.tailMap(first.getTimestamp())
+					: pageCache.subMap(first.getTimestamp(), toTimestamp + 1);
+			return new ArrayList<>(range.values());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * open a cursor that starts where the last cursor with the same name stopped, the cursor
+	 * is a consumer for the retention until it is closed
+	 */
+	@Override
+	public ICursor openCursor(String name) {
+		ConsumerOffsets localOffsets = offsets();
+		int slot = localOffsets.slot(name);
+		if (consumers.putIfAbsent(name, Long.MIN_VALUE) != null) {
+			throw new CacheException("consumer '" + name + "' is already open");
+		}
+		return new CursorImpl(name, this, localOffsets, slot);
+	}
+
+	private ConsumerOffsets offsets() {
+		lock.lock();
+		try {
+			if (offsets == null) {
+				offsets = new ConsumerOffsets(pageFactory.getCacheDir());
+			}
+			return offsets;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * a consumer holds back the eviction of consumed pages until it acknowledges its progress
+	 */
+	@Override
+	public void registerConsumer(String consumer) {
+		consumers.putIfAbsent(consumer, Long.MIN_VALUE);
+	}
+
+	/**
+	 * the consumer doesn't need the pages before readPage anymore
+	 */
+	@Override
+	public void acknowledge(String consumer, IPage readPage) {
+		consumers.put(consumer, readPage.getTimestamp());
+		if (metrics != IMetrics.NONE) {
+			metrics.consumerLag(consumer, lag(readPage.getTimestamp()));
+		}
+	}
+
+	@Override
+	public void unregisterConsumer(String consumer) {
+		consumers.remove(consumer);
+		metrics.consumerRemoved(consumer);
+	}
+
+	// the number of pages after the page with the timestamp
+	private int lag(long pageTimestamp) {
+		lock.lock();
+		try {
+			if (pageTimestamp == Long.MIN_VALUE) {
+				return pageCache.size();
+			}
+			return pageCache.tailMap(pageTimestamp + 1).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * remove the pages that are out of retention from the page map and delete their files,
+	 * the files are deleted without holding the lock, a page that is still read keeps its file
+	 * until its readers moved on but doesn't count against the disk budget anymore, returns the
+	 * number of evicted pages
+	 */
+	int evict() {
+		List<IPage> evicted = new ArrayList<>();
+		lock.lock();
+		try {
+			long consumed = consumedTimestamp();
+			long expired = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+			while (pageCache.size() > 1) {
+				long key = pageCache.firstLongKey();
+				IPage page = pageCache.get(key);
+				if (page.hasWriteBuffer()) {
+					break;
+				}
+				boolean oversize = maxDiskSize > 0 && diskSize + pageFactory.getSpareSize() > maxDiskSize;
+				if (!oversize && key >= consumed && page.getLastTimestamp() >= expired) {
+					break;
+				}
+				pageCache.remove(key);
+				diskSize -= page.getFileSize();
+				evicted.add(page);
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (IPage page : evicted) {
+			pageFactory.delete(page);
+		}
+		if (!evicted.isEmpty()) {
+			metrics.pagesEvicted(evicted.size());
+		}
+		return evicted.size();
+	}
+
+	// pages before this timestamp were read by all consumers
+	private long consumedTimestamp() {
+		if (!evictConsumed || consumers.isEmpty()) {
+			return Long.MIN_VALUE;
+		}
+		long result = Long.MAX_VALUE;
+		for (Long timestamp : consumers.values()) {
+			result = Math.min(result, timestamp);
+		}
+		return result;
+	}
+
+	/**
+	 * stop the retention thread, write and unmap the consumer positions and close the page factory
+	 */
+	@Override
+	public void close() {
+		PageEvictor localEvictor;
+		ConsumerOffsets localOffsets;
+		lock.lock();
+		try {
+			localEvictor = evictor;
+			evictor = null;
+			localOffsets = offsets;
+		} finally {
+			lock.unlock();
+		}
+		if (localEvictor != null) {
+			localEvictor.close();
+		}
+		if (localOffsets != null) {
+			localOffsets.close();
+		}
+		pageFactory.close();
 	}
 
 }
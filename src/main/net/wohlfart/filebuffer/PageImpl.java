@@ -7,16 +7,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 
 /**
@@ -24,6 +26,13 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * 
  * 
  * multiple threads can read each gets their own view of the data
+ *
+ * in single writer mode only one thread must write into the page, writes don't take
+ * any lock and the limit in the header is published with an ordered store
+ *
+ * multiple threads can write concurrently with offer(), each writer reserves a region,
+ * copies its chunk and commits by storing the chunk size, the limit is advanced over
+ * all committed chunks, the size of a chunk that is not committed yet is zero
  * 
  * see: http://www.kdgregory.com/index.php?page=java.byteBuffer
  */
@@ -32,26 +41,75 @@ public class PageImpl implements IPage {
 	public static final int LONG_SIZE = 8;
 	public static final int INT_SIZE = 4;
 
+	// the size of a memory page, used to touch every page of a prepared file
+	private static final int OS_PAGE_SIZE = 4096;
+
 	private static final int MIN_DATA_SIZE = INT_SIZE + INT_SIZE;  // would be: int[] {0, EOF}
 	private static final int EOF = Integer.MIN_VALUE;  
+	private static final int CLOSED = -1;
+	// a chunk larger than a page is stored as fragments in consecutive pages, the flags are in the
+	// size of the record: the first fragment has MORE, the middle ones MORE and CONTINUED
+	// and the last one CONTINUED
+	static final int FRAGMENT_MORE = 1 << 30;
+	static final int FRAGMENT_CONTINUED = 1 << 29;
+	static final int FRAGMENT_FLAGS = FRAGMENT_MORE | FRAGMENT_CONTINUED;
+	static final int SIZE_MASK = FRAGMENT_CONTINUED - 1;
+	static final int DEFAULT_BLOCK_SIZE = 1024 * 64;
 
 	private final File cacheFile;
 
 	private int fileSize;
 
+	// the start of this page in the file, not 0 if the page is a segment of a larger file
+	private long fileOffset;
+
+	private long timestamp;
+	// only for a new page, the timestamp may have been raised to a unique key
+	private long firstTimestamp;
+
+	private boolean singleWriter;
+
+	private Compression compression = Compression.NONE;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private boolean checksums;
+	private IMetrics metrics = IMetrics.NONE;
+	// the read mapping of the page, shared with the other pages of the factory
+	private MappedRegionCache regionCache = new MappedRegionCache(0);
+	// set before a read hands out a slice of the read mapping, the slice can outlive the view
+	// so the mapping is left to the garbage collector, cleared with a new mapping
+	private volatile boolean slicesEscaped;
+	private Mapper mapper = Mapper.BUFFERS;
+	// collects the chunks of a compressed page, guarded by the write lock
+	private BlockWriter blocks;
+
 
 	private ReadWriteLock lock = new ReentrantReadWriteLock();
 	private Lock writeLock = lock.writeLock();
 	private Lock readLock = lock.readLock();
 
 	private volatile MappedByteBuffer writeBuffer;
+	// the records of the write buffer are aligned, false for a page of the old layout
+	private volatile boolean aligned = true;
+	private MappedByteBuffer preparedBuffer;
+
+	// used by offer(): the next free offset or CLOSED, and the number of writers copying data
+	private final AtomicInteger reservePosition = new AtomicInteger(CLOSED);
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+	// the lock free header reads of the write buffer
+	private final AtomicInteger headerReads = new AtomicInteger();
+	private final Lock indexLock = new ReentrantLock();
 	private ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<>(); // not sure if this is a good idea
 
-	private PageMetadata metaData;
+	// the header of the page for the values that never change, timestamp, index and flags,
+	// set by the writer, a reader that finds none caches the header it read from the file
+	private volatile PageMetadata metaData;
+	// the final header values after the write buffer is closed
+	private volatile PageMetadata closedMetaData;
 
 
 	public PageImpl(File file) {
 		this.cacheFile = file;
+		this.fileSize = (int) file.length();
 	}
 
 	public PageImpl(File file, int fileSize) {
@@ -59,31 +117,228 @@ public class PageImpl implements IPage {
 		this.fileSize = fileSize;
 	}
 
+	public PageImpl(File file, int fileSize, long timestamp) {
+		this.cacheFile = file;
+		this.fileSize = fileSize;
+		this.timestamp = timestamp;
+		this.firstTimestamp = timestamp;
+	}
+
+	/**
+	 * a segment of a larger file, segments are written one after the other and the
+	 * chunks never cross the end of a segment
+	 */
+	public PageImpl(File file, long fileOffset, int fileSize, long timestamp) {
+		this.cacheFile = file;
+		this.fileOffset = fileOffset;
+		this.fileSize = fileSize;
+		this.timestamp = timestamp;
+		this.firstTimestamp = timestamp;
+	}
+
+	/**
+	 * an existing segment of a larger file, the header is read when needed
+	 */
+	public PageImpl(File file, long fileOffset, int fileSize) {
+		this.cacheFile = file;
+		this.fileOffset = fileOffset;
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * a closed page known from the page catalog, no need to read the header
+	 */
+	PageImpl(File file, long fileOffset, int fileSize, PageMetadata closedMetaData) {
+		this.cacheFile = file;
+		this.fileOffset = fileOffset;
+		this.fileSize = fileSize;
+		this.timestamp = closedMetaData.getTimestamp();
+		this.metaData = closedMetaData;
+		this.closedMetaData = closedMetaData;
+	}
+
+	/**
+	 * a page for a file that has already been created and mapped by prepareWriteBuffer()
+	 */
+	PageImpl(File file, long timestamp, MappedByteBuffer preparedBuffer) {
+		this.cacheFile = file;
+		this.fileSize = preparedBuffer.capacity();
+		this.timestamp = timestamp;
+		this.firstTimestamp = timestamp;
+		this.preparedBuffer = preparedBuffer;
+	}
+
+	/**
+	 * create and map a file and touch every memory page so creating a write buffer
+	 * for the file later doesn't cause any page faults
+	 */
+	static MappedByteBuffer prepareWriteBuffer(File file, int fileSize, Mapper mapper) {
+		if (file.exists()) {
+			throw new CacheException("file exists");
+		}
+		try (RandomAccessFile rand = new RandomAccessFile(file, "rw");
+				FileChannel channel = rand.getChannel()) {
+
+			MappedByteBuffer buffer = mapper.map(channel, READ_WRITE, 0, fileSize);
+			for (int i = 0; i < fileSize; i += OS_PAGE_SIZE) {
+				buffer.put(i, (byte) 0);
+			}
+			return buffer;
+
+		} catch (FileNotFoundException ex) {
+			throw new CacheException("error finding file, file is '" + file + "'", ex);
+		} catch (IOException ex) {
+			throw new CacheException("error opening file", ex);
+		}
+	}
+
+	/**
+	 * in single writer mode the write methods don't lock, only one thread must write
+	 */
+	public void setSingleWriter(boolean singleWriter) {
+		this.singleWriter = singleWriter;
+	}
+
+	/**
+	 * store the chunks of a new page in compressed blocks, the chunks of a block become visible
+	 * to readers when the block is full or the page is forced or sealed, writes to a compressed
+	 * page always take the lock
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * the uncompressed size of a block
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * store a checksum with each chunk of a new page, the checksums are verified when an
+	 * unclosed page is recovered after a crash
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	public void setMetrics(IMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * the timestamp of the first chunk of a new page when it is below the timestamp of the page,
+	 * the timestamp of the page is its key and has to be above the key of the previous page
+	 */
+	void setFirstTimestamp(long firstTimestamp) {
+		this.firstTimestamp = firstTimestamp;
+	}
+
+	void setRegionCache(MappedRegionCache regionCache) {
+		this.regionCache = regionCache;
+	}
+
+	/**
+	 * set before a buffer is mapped, a prepared buffer must come from the same mapper
+	 */
+	void setMapper(Mapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * true if the chunks are stored in compressed blocks
+	 */
+	@Override
+	public boolean isCompressed() {
+		return metaData().isCompressed();
+	}
+
+	@Override
+	public int getFlags() {
+		return metaData().getFlags();
+	}
+
+	/**
+	 * the timestamp of this page, if the page is not open the header is read from the file
+	 */
 	@Override
 	public long getTimestamp() {
-		assert metaData != null
-				: "need to call openWriteBuffer() or openReadBuffer() to get a timestamp";
-		return metaData.getTimestamp();
+		return metaData().getTimestamp();
 	}
 
+	/**
+	 * the timestamp of the last chunk written into this page
+	 */
 	@Override
-	public long getIndex() {
-		assert metaData != null
-				: "need to call openWriteBuffer() or openReadBuffer() to get an index";
-		return metaData.getIndex();
+	public long getLastTimestamp() {
+		headerReads.incrementAndGet();
+		try {
+			MappedByteBuffer localWriteBuffer = writeBuffer;
+			if (localWriteBuffer != null) {
+				return PageMetadata.getLastTimestamp(localWriteBuffer);
+			}
+		} finally {
+			headerReads.decrementAndGet();
+		}
+		return closedMetaData().getLastTimestamp();
 	}
 
 	/**
-	 * return true if this page is ready for writing
+	 * the end of the committed data in this page
 	 */
 	@Override
-	public boolean hasWriteBuffer() {
+	public long getLimit() {
+		headerReads.incrementAndGet();
 		try {
-			writeLock.lock();
-			return writeBuffer != null;
+			MappedByteBuffer localWriteBuffer = writeBuffer;
+			if (localWriteBuffer != null) {
+				return PageMetadata.getLimit(localWriteBuffer);
+			}
 		} finally {
-			writeLock.unlock();
+			headerReads.decrementAndGet();
 		}
+		return closedMetaData().getLimit();
+	}
+
+	@Override
+	public int getFileSize() {
+		return fileSize;
+	}
+
+	@Override
+	public File getFile() {
+		return cacheFile;
+	}
+
+	@Override
+	public long getFileOffset() {
+		return fileOffset;
+	}
+
+	/**
+	 * the index of this page, if the page is not open the header is read from the file
+	 */
+	@Override
+	public long getIndex() {
+		return metaData().getIndex();
+	}
+
+	// the header of a page that is not open for writing, might have been written by someone else
+	private PageMetadata closedMetaData() {
+		PageMetadata result = closedMetaData;
+		if (result == null) {
+			result = new PageMetadata(readHeader());
+		}
+		return result;
+	}
+
+	/**
+	 * return true if this page is ready for writing
+	 */
+	@Override
+	public boolean hasWriteBuffer() {
+		return writeBuffer != null;
 	}
 
 	/**
@@ -95,22 +350,28 @@ public class PageImpl implements IPage {
 	 */
 	@Override
 	public void createWriteBuffer() {
-		if (cacheFile.exists()) {
-			throw new CacheException("file exists");
-		}
 		if (PageMetadata.METADATA_SIZE + MIN_DATA_SIZE > fileSize) {
 			throw new CacheException("provided filesize is too small, for header and data we"
 					+ " need at least " + (PageMetadata.METADATA_SIZE + MIN_DATA_SIZE)
 					+ " but got " + fileSize);        	
 		}
+		if (preparedBuffer != null) {
+			adoptPreparedBuffer();
+			return;
+		}
+		if (cacheFile.exists() && cacheFile.length() > fileOffset) {
+			throw new CacheException("file exists");
+		}
 
 		writeLock.lock();
 		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw");
 				FileChannel channel = rand.getChannel()) {
 
-			writeBuffer = channel.map(READ_WRITE, 0, fileSize);
-			PageMetadata.writeInitialHeader(writeBuffer);
+			writeBuffer = mapper.map(channel, READ_WRITE, fileOffset, fileSize);
+			PageMetadata.writeInitialHeader(writeBuffer, timestamp, firstTimestamp, headerFlags());
+			startBlocks();
 			metaData = new PageMetadata(writeBuffer);
+			reservePosition.set(writeBuffer.position());
 
 		} catch (FileNotFoundException ex) {
 			throw new CacheException("error finding file, file is '" + cacheFile + "'", ex);
@@ -121,22 +382,54 @@ public class PageImpl implements IPage {
 		}
 	}
 
+	private int headerFlags() {
+		return (compression != Compression.NONE ? PageMetadata.FLAG_COMPRESSED : 0)
+				| (checksums ? PageMetadata.FLAG_CHECKSUM : 0) | PageMetadata.FLAG_ALIGNED;
+	}
+
+	private void startBlocks() {
+		if (compression != Compression.NONE) {
+			blocks = new BlockWriter(blockSize);
+		}
+	}
+
+	// the file is already created and mapped, we only need the header
+	private void adoptPreparedBuffer() {
+		try {
+			writeLock.lock();
+			writeBuffer = preparedBuffer;
+			preparedBuffer = null;
+			PageMetadata.writeInitialHeader(writeBuffer, timestamp, firstTimestamp, headerFlags());
+			startBlocks();
+			metaData = new PageMetadata(writeBuffer);
+			reservePosition.set(writeBuffer.position());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
 	/**
 	 * open write buffer for append
 	 */
 	@Override
 	public void openWriteBuffer() {
-		if (fileSize != cacheFile.length()) {
-			throw new CacheException("filesize changed, was: " + fileSize + " now: " + cacheFile.length());
+		if (fileOffset + fileSize > cacheFile.length()) {
+			throw new CacheException("filesize changed, was: " + (fileOffset + fileSize) + " now: " + cacheFile.length());
 		}
 
 		writeLock.lock();
 		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw");
 				FileChannel channel = rand.getChannel()) {
 
-			writeBuffer = channel.map(READ_WRITE, 0, fileSize);
+			writeBuffer = mapper.map(channel, READ_WRITE, fileOffset, fileSize);
 			metaData = new PageMetadata(writeBuffer);
+			aligned = PageMetadata.alignMask(writeBuffer) != 0;
+			if (metaData.isCompressed()) {
+				compression = Compression.DEFLATE;
+				startBlocks();
+			}
 			writeBuffer.position(PageMetadata.getLimit(writeBuffer)); // find the append position
+			reservePosition.set(writeBuffer.position());
 
 		} catch (FileNotFoundException ex) {
 			throw new CacheException("error finding file, file is '" + cacheFile + "'", ex);
@@ -148,59 +441,570 @@ public class PageImpl implements IPage {
 	}
 
 	/**
-	 * the byte count that can be stored in this buffer without getting an overflow
+	 * check the chunks of a page that was not closed properly, the data is cut after the
+	 * last complete chunk and the page is sealed, chunks after the published limit are only
+	 * kept if their checksum is valid, the rest of the page is cleared so a torn chunk after
+	 * the cut can't be taken for a valid one later, returns true if the page was changed
+	 */
+	boolean recover() {
+		writeLock.lock();
+		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw");
+				FileChannel channel = rand.getChannel()) {
+
+			MappedByteBuffer buffer = mapper.map(channel, READ_WRITE, fileOffset, fileSize);
+			try {
+				final PageMetadata metadata = new PageMetadata(buffer);
+				final int header = PageMetadata.chunkHeaderSize(buffer);
+				final int mask = PageMetadata.alignMask(buffer);
+				final boolean checked = metadata.hasChecksums();
+				final int limit = (int) metadata.getLimit();
+				int position = metadata.getDataOffset();
+				boolean sealed = false;
+				while (position + INT_SIZE <= fileSize) {
+					final int size = buffer.getInt(position);
+					if (size == EOF) {
+						sealed = true;
+						break;
+					}
+					if (size < 0 || position + header + (size & SIZE_MASK) + INT_SIZE > fileSize
+							|| (position >= limit && (!checked || size == 0))
+							|| (checked && buffer.getInt(position + INT_SIZE)
+									!= ChunkChecksum.checksum(buffer, position + header, size))) {
+						break;
+					}
+					position = PageMetadata.align(position + header + (size & SIZE_MASK), mask);
+				}
+				if (sealed && position == limit) {
+					return false;
+				}
+				PageMetadata.truncate(buffer, position);
+				buffer.putInt(position, EOF);
+				clear(buffer, position + INT_SIZE);
+				mapper.force(buffer);
+				metaData = null;
+				closedMetaData = null;
+				return true;
+			} finally {
+				mapper.unmap(buffer);
+			}
+
+		} catch (FileNotFoundException ex) {
+			throw new CacheException("error finding file, file is '" + cacheFile + "'", ex);
+		} catch (IOException ex) {
+			throw new CacheException("error opening file", ex);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// zero the page from start to the end, only the words that are not zero yet are written
+	// so the untouched part of a large page isn't dirtied
+	private void clear(MappedByteBuffer buffer, int start) {
+		int position = start;
+		while (position < fileSize && (position & (LONG_SIZE - 1)) != 0) {
+			buffer.put(position++, (byte) 0);
+		}
+		for (; position + LONG_SIZE <= fileSize; position += LONG_SIZE) {
+			if (buffer.getLong(position) != 0) {
+				buffer.putLong(position, 0);
+			}
+		}
+		for (; position < fileSize; position++) {
+			buffer.put(position, (byte) 0);
+		}
+	}
+
+	/**
+	 * the byte count that can be stored in this buffer without getting an overflow,
+	 * a larger chunk must be written as fragments
 	 */
 	@Override
 	public int remainingForWrite() {
-
+		if (singleWriter && compression == Compression.NONE) {
+			return Math.min(remaining(writeBuffer), SIZE_MASK);
+		}
 		try {
 			writeLock.lock();
-			if (writeBuffer == null) {
-				throw new CacheException("no write buffer open");
-			}
-			return writeBuffer.remaining() - (INT_SIZE + INT_SIZE);
+			return Math.min(remaining(writeBuffer), SIZE_MASK);
 		} finally {
 			writeLock.unlock();
 		}
 	}
 
+	private int remaining(MappedByteBuffer localWriteBuffer) {
+		if (localWriteBuffer == null) {
+			throw new CacheException("no write buffer open");
+		}
+		final int header = PageMetadata.chunkHeaderSize(localWriteBuffer);
+		// the EOF marker is at the aligned end of the last record
+		final int end = (localWriteBuffer.capacity() - INT_SIZE) & ~PageMetadata.alignMask(localWriteBuffer);
+		final int remaining = end - localWriteBuffer.position() - header;
+		if (blocks != null) {
+			// the block might not compress, we need space for the raw block and its header
+			return remaining - BlockWriter.BLOCK_HEADER_SIZE - blocks.size() - INT_SIZE;
+		}
+		return remaining;
+	}
+
 	/**
 	 * write as much data as possible into the buffer,
 	 * incoming ByteBuffer is modified, the position is advanced
 	 * to reflect how much has been written already
 	 */
 	public void write(ByteBuffer incoming) {
-		
+		if (singleWriter && compression == Compression.NONE) {
+			append(incoming, 0, false);
+			return;
+		}
+		try {
+			writeLock.lock();
+			append(incoming, 0, false);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * same as write(ByteBuffer) but also records the timestamp of the chunk in the
+	 * page index so readers can seek to it
+	 */
+	@Override
+	public void write(ByteBuffer incoming, long timestamp) {
+		if (singleWriter && compression == Compression.NONE) {
+			append(incoming, timestamp, true);
+			return;
+		}
 		try {
 			writeLock.lock();
-			int chunksize = incoming.limit() - incoming.position();
-			// we need to add int for this chunk's offset plus the EOF marker for the read buffer
-			if (remainingForWrite() < chunksize) { 
-				writeBuffer.mark();
-				writeBuffer.putInt(EOF);
-				writeBuffer.reset();
+			append(incoming, timestamp, true);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * the actual write, the caller is responsible for the locking,
+	 * the limit is published after the chunk is complete
+	 */
+	private void append(ByteBuffer incoming, long timestamp, boolean indexed) {
+		final MappedByteBuffer localWriteBuffer = writeBuffer;
+		if (!put(localWriteBuffer, incoming, timestamp, indexed)) {
+			flushBlock(localWriteBuffer);
+			localWriteBuffer.putInt(localWriteBuffer.position(), EOF);
+			return;
+		}
+		PageMetadata.setLimit(localWriteBuffer, localWriteBuffer.position());
+	}
+
+	// copy length and payload, false if the chunk doesn't fit, the limit is not published
+	private boolean put(MappedByteBuffer localWriteBuffer, ByteBuffer incoming, long timestamp, boolean indexed) {
+		final int chunksize = incoming.limit() - incoming.position();
+		final int offset = localWriteBuffer.position();
+		// we need to add int for this chunk's offset plus the EOF marker for the read buffer
+		if (remaining(localWriteBuffer) < chunksize || chunksize > SIZE_MASK) {
+			return false;
+		}
+		if (blocks != null) {
+			if (!blocks.fits(chunksize)) {
+				flushBlock(localWriteBuffer);
+			}
+			blocks.add(incoming, timestamp, indexed);
+			if (indexed) {
+				PageMetadata.updateLastTimestamp(localWriteBuffer, timestamp);
+			}
+			return true;
+		}
+		putRecord(localWriteBuffer, incoming, 0);
+		if (indexed) {
+			PageMetadata.updateIndex(localWriteBuffer, timestamp, offset);
+		}
+		return true;
+	}
+
+	// size with the fragment flags, checksum and payload at the position of the write buffer,
+	// the position is moved to the start of the next record
+	private static void putRecord(MappedByteBuffer localWriteBuffer, ByteBuffer data, int fragment) {
+		final int size = data.remaining() | fragment;
+		final int offset = localWriteBuffer.position();
+		final int header = PageMetadata.chunkHeaderSize(localWriteBuffer);
+		localWriteBuffer.putInt(size);
+		localWriteBuffer.position(offset + header);
+		localWriteBuffer.put(data);
+		if (header > INT_SIZE) {
+			localWriteBuffer.putInt(offset + INT_SIZE,
+					ChunkChecksum.checksum(localWriteBuffer, offset + header, size));
+		}
+		localWriteBuffer.position(PageMetadata.align(localWriteBuffer.position(),
+				PageMetadata.alignMask(localWriteBuffer)));
+	}
+
+	/**
+	 * write as much of a chunk that is too large for a page as fits into this page and advance
+	 * its position, the first fragment is indexed with the timestamp, returns the number of bytes
+	 * written, only for uncompressed pages that no other thread writes to
+	 */
+	@Override
+	public int writeFragment(ByteBuffer incoming, long timestamp, boolean first) {
+		try {
+			writeLock.lock();
+			final MappedByteBuffer localWriteBuffer = writeBuffer;
+			if (blocks != null) {
+				throw new CacheException("a compressed page can't store fragments");
+			}
+			final int size = Math.min(Math.min(remaining(localWriteBuffer), SIZE_MASK), incoming.remaining());
+			if (size <= 0) {
+				return 0;
+			}
+			final int offset = localWriteBuffer.position();
+			final int fragment = (first ? 0 : FRAGMENT_CONTINUED)
+					| (size < incoming.remaining() ? FRAGMENT_MORE : 0);
+			final ByteBuffer data = incoming.duplicate();
+			data.limit(data.position() + size);
+			putRecord(localWriteBuffer, data, fragment);
+			incoming.position(incoming.position() + size);
+			if (first) {
+				PageMetadata.updateIndex(localWriteBuffer, timestamp, offset);
+			} else {
+				PageMetadata.updateLastTimestamp(localWriteBuffer, timestamp);
+			}
+			PageMetadata.setLimit(localWriteBuffer, localWriteBuffer.position());
+			// offer() continues after the fragment
+			if (reservePosition.get() != CLOSED) {
+				reservePosition.set(localWriteBuffer.position());
+			}
+			return size;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * write the chunks starting at offset as long as they fit into this page, all chunks share
+	 * a single lock and the limit is published once, returns the number of chunks written
+	 */
+	@Override
+	public int write(ByteBuffer[] chunks, long[] timestamps, int offset, int length) {
+		if (singleWriter && compression == Compression.NONE) {
+			return appendAll(chunks, timestamps, offset, length);
+		}
+		try {
+			writeLock.lock();
+			return appendAll(chunks, timestamps, offset, length);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private int appendAll(ByteBuffer[] chunks, long[] timestamps, int offset, int length) {
+		final MappedByteBuffer localWriteBuffer = writeBuffer;
+		int count = 0;
+		while (count < length
+				&& put(localWriteBuffer, chunks[offset + count], timestamps[offset + count], true)) {
+			count++;
+		}
+		if (count > 0) {
+			PageMetadata.setLimit(localWriteBuffer, localWriteBuffer.position());
+		}
+		return count;
+	}
+
+	/**
+	 * mark the end of the data in this page, readers will move on to the next page
+	 * when they reach the marker
+	 */
+	@Override
+	public void sealWriteBuffer() {
+		try {
+			writeLock.lock();
+			if (writeBuffer == null) {
+				throw new CacheException("no write buffer open");
+			}
+			flushBlock(writeBuffer);
+			// stop concurrent writers from reserving and wait for the running ones
+			int reserved = reservePosition.getAndSet(CLOSED);
+			while (pendingWrites.get() > 0) {
+				Thread.yield();
+			}
+			publishLimit(writeBuffer);
+			int end = Math.max(reserved, writeBuffer.position());
+			writeBuffer.position(end);
+			writeBuffer.putInt(end, EOF);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * thread safe write without locking, returns false if the chunk doesn't fit into
+	 * this page or the page is sealed, a chunk without data is ignored,
+	 * don't mix with the other write methods
+	 */
+	@Override
+	public boolean offer(ByteBuffer incoming, long timestamp) {
+		final int chunksize = incoming.limit() - incoming.position();
+		if (chunksize == 0) {
+			return true;
+		}
+		if (chunksize > SIZE_MASK) {
+			return false;
+		}
+		if (compression != Compression.NONE || !aligned) {
+			return offerLocked(incoming, timestamp);
+		}
+		// count ourself before we look at the buffer so it isn't unmapped while we copy
+		pendingWrites.incrementAndGet();
+		try {
+			final MappedByteBuffer localWriteBuffer = writeBuffer;
+			if (localWriteBuffer == null) {
+				return false;
+			}
+			final int header = PageMetadata.chunkHeaderSize(localWriteBuffer);
+			// the record is padded so the size word of the next one is aligned
+			final int offset = reserve(PageMetadata.align(header + chunksize, PageMetadata.ALIGN_MASK),
+					localWriteBuffer.capacity());
+			if (offset == CLOSED) {
+				return false;
+			}
+			final ByteBuffer region = localWriteBuffer.duplicate();
+			region.position(offset + header);
+			region.put(incoming);
+			if (header > INT_SIZE) {
+				region.putInt(offset + INT_SIZE, ChunkChecksum.checksum(region, offset + header, chunksize));
+			}
+			// commit, readers and the limit don't move past a chunk with size zero
+			MemoryAccess.putIntVolatile(localWriteBuffer, offset, chunksize);
+			PageMetadata.updateLastTimestamp(localWriteBuffer, timestamp);
+			if (indexLock.tryLock()) {
+				try {
+					// a busy index is skipped, the index is sparse anyways
+					PageMetadata.updateIndex(localWriteBuffer, timestamp, offset);
+				} finally {
+					indexLock.unlock();
+				}
+			}
+			publishLimit(localWriteBuffer);
+			return true;
+		} finally {
+			pendingWrites.decrementAndGet();
+		}
+	}
+
+	/**
+	 * concurrent write of the chunks starting at offset, a single region is reserved for
+	 * all chunks that fit, returns the number of chunks written
+	 */
+	@Override
+	public int offer(ByteBuffer[] chunks, long[] timestamps, int offset, int length) {
+		if (compression != Compression.NONE || !aligned) {
+			return offerLocked(chunks, timestamps, offset, length);
+		}
+		pendingWrites.incrementAndGet();
+		try {
+			final MappedByteBuffer localWriteBuffer = writeBuffer;
+			if (localWriteBuffer == null) {
+				return 0;
+			}
+			final int header = PageMetadata.chunkHeaderSize(localWriteBuffer);
+			int start;
+			int count;
+			for (;;) {
+				start = reservePosition.get();
+				if (start == CLOSED) {
+					return 0;
+				}
+				int end = start;
+				count = 0;
+				while (count < length) {
+					int size = chunks[offset + count].remaining();
+					final int record = PageMetadata.align(header + size, PageMetadata.ALIGN_MASK);
+					if (size > 0 && (size > SIZE_MASK || end + record + INT_SIZE > localWriteBuffer.capacity())) {
+						break;
+					}
+					end += size > 0 ? record : 0;
+					count++;
+				}
+				if (count == 0) {
+					return 0;
+				}
+				if (reservePosition.compareAndSet(start, end)) {
+					break;
+				}
+			}
+
+			final ByteBuffer region = localWriteBuffer.duplicate();
+			int position = start;
+			long lastTimestamp = Long.MIN_VALUE;
+			for (int i = offset; i < offset + count; i++) {
+				final int chunksize = chunks[i].remaining();
+				if (chunksize == 0) {
+					continue;
+				}
+				lastTimestamp = Math.max(lastTimestamp, timestamps[i]);
+				region.position(position + header);
+				region.put(chunks[i]);
+				if (header > INT_SIZE) {
+					region.putInt(position + INT_SIZE, ChunkChecksum.checksum(region, position + header, chunksize));
+				}
+				MemoryAccess.putIntVolatile(localWriteBuffer, position, chunksize);
+				position += PageMetadata.align(header + chunksize, PageMetadata.ALIGN_MASK);
+			}
+			PageMetadata.updateLastTimestamp(localWriteBuffer, lastTimestamp);
+			if (indexLock.tryLock()) {
+				try {
+					PageMetadata.updateIndex(localWriteBuffer, timestamps[offset], start);
+				} finally {
+					indexLock.unlock();
+				}
+			}
+			publishLimit(localWriteBuffer);
+			return count;
+		} finally {
+			pendingWrites.decrementAndGet();
+		}
+	}
+
+	// the blocks of a compressed page are written under the lock, false after the page is sealed
+	private boolean offerLocked(ByteBuffer incoming, long timestamp) {
+		try {
+			writeLock.lock();
+			final MappedByteBuffer localWriteBuffer = writeBuffer;
+			if (localWriteBuffer == null || reservePosition.get() == CLOSED
+					|| !put(localWriteBuffer, incoming, timestamp, true)) {
+				return false;
+			}
+			PageMetadata.setLimit(localWriteBuffer, localWriteBuffer.position());
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private int offerLocked(ByteBuffer[] chunks, long[] timestamps, int offset, int length) {
+		try {
+			writeLock.lock();
+			if (writeBuffer == null || reservePosition.get() == CLOSED) {
+				return 0;
+			}
+			return appendAll(chunks, timestamps, offset, length);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// write the collected chunks as one compressed record and publish it, the caller holds the lock
+	private void flushBlock(MappedByteBuffer localWriteBuffer) {
+		if (blocks == null || blocks.isEmpty()) {
+			return;
+		}
+		final int offset = localWriteBuffer.position();
+		final boolean indexed = blocks.isIndexed();
+		final long firstTimestamp = blocks.getFirstTimestamp();
+		final ByteBuffer record = blocks.compress();
+		putRecord(localWriteBuffer, record, 0);
+		if (indexed) {
+			PageMetadata.updateIndex(localWriteBuffer, firstTimestamp, offset);
+		}
+		PageMetadata.setLimit(localWriteBuffer, localWriteBuffer.position());
+	}
+
+	// claim size bytes, always keep space for the EOF marker
+	private int reserve(int size, int capacity) {
+		for (;;) {
+			final int offset = reservePosition.get();
+			if (offset == CLOSED || offset + size + INT_SIZE > capacity) {
+				return CLOSED;
+			}
+			if (reservePosition.compareAndSet(offset, offset + size)) {
+				return offset;
+			}
+		}
+	}
+
+	// advance the limit over all committed chunks, any writer can do this for the others,
+	// only offer() commits chunks this way and it only writes aligned pages
+	private void publishLimit(MappedByteBuffer localWriteBuffer) {
+		if (!aligned) {
+			return;
+		}
+		final int header = PageMetadata.chunkHeaderSize(localWriteBuffer);
+		for (;;) {
+			final int limit = PageMetadata.getLimit(localWriteBuffer);
+			if (limit + INT_SIZE > localWriteBuffer.capacity()) {
 				return;
 			}
-			writeBuffer.putInt(chunksize);
-			writeBuffer.put(incoming);
-			PageMetadata.setLimit(writeBuffer, writeBuffer.position());
+			final int chunksize = MemoryAccess.getIntVolatile(localWriteBuffer, limit);
+			if (chunksize <= 0) {
+				return;
+			}
+			PageMetadata.compareAndSetLimit(localWriteBuffer, limit,
+					limit + PageMetadata.align(header + (chunksize & SIZE_MASK), PageMetadata.ALIGN_MASK));
+		}
+	}
 
+	/**
+	 * flush the data written so far to disk, does nothing if the write buffer is closed
+	 */
+	@Override
+	public void forceWriteBuffer() {
+		try {
+			writeLock.lock();
+			if (writeBuffer != null) {
+				flushBlock(writeBuffer);
+				force(writeBuffer);
+			}
 		} finally {
 			writeLock.unlock();
 		}
 	}
 
+	private void force(MappedByteBuffer localWriteBuffer) {
+		if (metrics == IMetrics.NONE) {
+			mapper.force(localWriteBuffer);
+			return;
+		}
+		final long start = System.nanoTime();
+		mapper.force(localWriteBuffer);
+		metrics.forced(System.nanoTime() - start);
+	}
+
 	/**
 	 * flush and close the write buffer
 	 */
 	@Override
 	public void closeWriteBuffer() {
+		closeWriteBuffer(true);
+	}
+
+	/**
+	 * close the write buffer, without force the data is written back by the operating system
+	 */
+	@Override
+	public void closeWriteBuffer(boolean force) {
 		try {
 			writeLock.lock();
 			if (writeBuffer != null) {
-				writeBuffer.force();
-				destroyByteBuffer(writeBuffer);
+				// stop concurrent writers and wait for the running ones before we take the metadata
+				reservePosition.set(CLOSED);
+				while (pendingWrites.get() > 0) {
+					Thread.yield();
+				}
+				publishLimit(writeBuffer);
+				flushBlock(writeBuffer);
+				if (blocks != null) {
+					blocks.close();
+					blocks = null;
+				}
+				if (force) {
+					force(writeBuffer);
+				}
+				closedMetaData = new PageMetadata(writeBuffer.duplicate());
+				final MappedByteBuffer localWriteBuffer = writeBuffer;
 				writeBuffer = null;
+				// no unmap while a late writer or a lock free header read still looks at the buffer
+				while (pendingWrites.get() > 0 || headerReads.get() > 0) {
+					Thread.yield();
+				}
+				mapper.unmap(localWriteBuffer);
 			}
 		} finally {
 			writeLock.unlock();
@@ -224,26 +1028,85 @@ public class PageImpl implements IPage {
 	/**
 	 * initialize a thread load read buffer for this page
 	 * the read buffer:
-	 *    position: the next free index which is 0
+	 *    position: the first chunk after the header and the index
 	 *    capacity: end of the file
-	 *    limit: = position	 
+	 *    limit: = end of the file, the published limit is read from the header
 	 */
 	public void openReadBuffer() {
+		openReadBuffer(Long.MIN_VALUE);
+	}
 
-		readLock.lock();
-		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "r");
-				FileChannel channel = rand.getChannel()) {
+	/**
+	 * initialize a thread local read buffer for this page and move the position to the
+	 * last indexed chunk before timestamp, the following reads return all chunks written
+	 * at timestamp or later and possibly a few chunks shortly before
+	 */
+	@Override
+	public void openReadBuffer(long timestamp) {
+		ByteBuffer previous = readBuffer.get();
+		readBuffer.set(createReadView(timestamp));
+		if (previous != null) {
+			closeReadView(previous);
+		}
+	}
 
-			MappedByteBuffer localReadBuffer = channel.map(READ_ONLY, 0, cacheFile.length());
-			metaData = new PageMetadata(localReadBuffer);
-			readBuffer.set(localReadBuffer.slice());
+	/**
+	 * a view of the whole file positioned like openReadBuffer(timestamp), the view is passed to
+	 * the read methods by readers that keep their position independent of the current thread,
+	 * with a region cache the views of a page share one mapping
+	 */
+	@Override
+	public ByteBuffer createReadView(long timestamp) {
+		try {
+			readLock.lock();
+			// a view of the whole file, we need the header to find the published limit
+			ByteBuffer view = regionCache.acquire(this);
+			view.position((int) PageMetadata.findOffset(view, timestamp));
+			return view;
+		} finally {
+			readLock.unlock();
+		}
+	}
 
+	/**
+	 * the view is not used anymore, the mapping is unmapped with its last view unless the
+	 * cache keeps it or a read handed out a slice of it, see MappedRegionCache
+	 */
+	@Override
+	public void closeReadView(ByteBuffer view) {
+		regionCache.release(this);
+	}
+
+	MappedByteBuffer mapReadOnly() {
+		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "r");
+				FileChannel channel = rand.getChannel()) {
+			return mapper.map(channel, READ_ONLY, fileOffset, fileSize);
 		} catch (FileNotFoundException ex) {
 			throw new CacheException("error finding file, file: '" + cacheFile + "'", ex);
 		} catch (IOException ex) {
 			throw new CacheException("error opening file, file: '" + cacheFile + "'", ex);
-		} finally {
-			readLock.unlock();
+		}
+	}
+
+	void unmapReadOnly(ByteBuffer buffer) {
+		mapper.unmap(buffer);
+	}
+
+	/**
+	 * true if a reader might still use a slice of the read mapping of this page
+	 */
+	boolean hasEscapedSlices() {
+		return slicesEscaped;
+	}
+
+	// the page gets a new read mapping, the slices of the old one are gone
+	void clearEscapedSlices() {
+		slicesEscaped = false;
+	}
+
+	private void escape() {
+		if (!slicesEscaped) {
+			slicesEscaped = true;
 		}
 	}
 
@@ -252,14 +1115,15 @@ public class PageImpl implements IPage {
 	 */
 	@Override
 	public boolean isReadComplete() {
+		return isReadComplete(threadReadBuffer());
+	}
+
+	@Override
+	public boolean isReadComplete(ByteBuffer view) {
 		try {
 			readLock.lock();
-			
-			ByteBuffer localReadBuffer = readBuffer.get();
-			localReadBuffer.mark();
-			int nextLimit = localReadBuffer.getInt();
-			localReadBuffer.reset();
-
+			int nextLimit = PageMetadata.alignMask(view) != 0
+					? MemoryAccess.getIntVolatile(view, view.position()) : view.getInt(view.position());
 			return nextLimit == EOF;
 		} finally {
 			readLock.unlock();
@@ -267,40 +1131,296 @@ public class PageImpl implements IPage {
 	}
 
 	/**
-	 * read the next chunk of data from the thread local buffer
+	 * return true if a chunk has been committed after the current read position,
+	 * a page that is still being written can be read up to the limit published by the writer
+	 */
+	@Override
+	public boolean isReadAvailable() {
+		try {
+			readLock.lock();
+			ByteBuffer localReadBuffer = threadReadBuffer();
+			return localReadBuffer.position() < PageMetadata.getLimit(localReadBuffer);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * read the next chunk of data from the thread local buffer,
+	 * returns an empty buffer if no more chunk has been committed yet
 	 */
 	public ByteBuffer read() {
+		return read(threadReadBuffer());
+	}
+
+	/**
+	 * read the next chunk of data from the view and move its position,
+	 * returns an empty buffer if no more chunk has been committed yet
+	 */
+	@Override
+	public ByteBuffer read(ByteBuffer view) {
 		try {
 			readLock.lock();
-			final ByteBuffer localReadBuffer = readBuffer.get();
-			if (localReadBuffer == null) {
-				throw new CacheException("read buffer for the current thread is not initialized");
+
+			// don't read past the limit published by the writer or into a fragmented chunk
+			final int position = view.position();
+			int chunkSize = 0;
+			if (position < PageMetadata.getLimit(view)) {
+				chunkSize = view.getInt(position);
+				if ((chunkSize & FRAGMENT_FLAGS) != 0) {
+					chunkSize = 0;
+				} else {
+					view.position(position + PageMetadata.chunkHeaderSize(view));
+				}
 			}
-			
-			localReadBuffer.mark();
 
 			// slice a chunk
-			final int chunkSize = localReadBuffer.getInt();
-			if (chunkSize == 0) {
-				localReadBuffer.reset();
-			} 
-			localReadBuffer.limit(localReadBuffer.position() + chunkSize);
-			final ByteBuffer result = localReadBuffer.slice();
+			escape();
+			view.limit(view.position() + chunkSize);
+			final ByteBuffer result = view.slice();
 
 			// prepare for the next read
-			localReadBuffer.position(localReadBuffer.position() + chunkSize);
-			localReadBuffer.limit(localReadBuffer.capacity());
+			view.limit(view.capacity());
+			view.position(PageMetadata.align(view.position() + chunkSize, PageMetadata.alignMask(view)));
 
 			return result;
-		} catch (BufferUnderflowException ex) {
+		} catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
 			throw new CacheException("error reading data", ex);
 		} catch (IllegalArgumentException ex) {
-			throw new CacheException("error reading data, localReadBuffer is " + readBuffer.get(), ex);
+			throw new CacheException("error reading data, read buffer is " + view, ex);
 		} finally {
 			readLock.unlock();
 		}
 	}
 
+	/**
+	 * copy the next chunk into target without allocating, returns the size of the chunk or
+	 * IBuffer.NO_DATA if no more chunk has been committed yet, a chunk that doesn't fit
+	 * into target is not consumed and ~size is returned
+	 */
+	@Override
+	public int read(ByteBuffer view, ByteBuffer target) {
+		try {
+			readLock.lock();
+			final int position = view.position();
+			if (position >= PageMetadata.getLimit(view)) {
+				return IBuffer.NO_DATA;
+			}
+			final int chunkSize = view.getInt(position);
+			if ((chunkSize & FRAGMENT_FLAGS) != 0) {
+				return IBuffer.NO_DATA;
+			}
+			if (chunkSize > target.remaining()) {
+				return ~chunkSize;
+			}
+			final int header = PageMetadata.chunkHeaderSize(view);
+			view.limit(position + header + chunkSize);
+			view.position(position + header);
+			target.put(view);
+			view.limit(view.capacity());
+			view.position(PageMetadata.align(view.position(), PageMetadata.alignMask(view)));
+			return chunkSize;
+		} catch (IndexOutOfBoundsException ex) {
+			throw new CacheException("error reading data", ex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * set position and limit of chunkView to the next chunk and move the view behind it,
+	 * chunkView must be a duplicate of view so nothing is allocated, returns the size of
+	 * the chunk or IBuffer.NO_DATA if no more chunk has been committed yet
+	 */
+	@Override
+	public int nextChunk(ByteBuffer view, ByteBuffer chunkView) {
+		try {
+			readLock.lock();
+			final int position = view.position();
+			if (position >= PageMetadata.getLimit(view)) {
+				return IBuffer.NO_DATA;
+			}
+			final int chunkSize = view.getInt(position) & SIZE_MASK;
+			final int header = PageMetadata.chunkHeaderSize(view);
+			final int end = position + header + chunkSize;
+			chunkView.limit(end);
+			chunkView.position(position + header);
+			view.position(PageMetadata.align(end, PageMetadata.alignMask(view)));
+			return chunkSize;
+		} catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+			throw new CacheException("error reading data", ex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * the stored size of the next record with its fragment flags without moving the view,
+	 * IBuffer.NO_DATA if no more record has been committed yet
+	 */
+	@Override
+	public int peekRecord(ByteBuffer view) {
+		final int position = view.position();
+		if (position >= PageMetadata.getLimit(view)) {
+			return IBuffer.NO_DATA;
+		}
+		return view.getInt(position);
+	}
+
+	/**
+	 * pass up to max committed chunks to the consumer, the lock, the thread local
+	 * and the limit are looked up only once, returns the number of chunks read
+	 */
+	@Override
+	public int read(int max, Consumer<? super ByteBuffer> consumer) {
+		return read(threadReadBuffer(), max, consumer);
+	}
+
+	@Override
+	public int read(ByteBuffer view, int max, Consumer<? super ByteBuffer> consumer) {
+		try {
+			readLock.lock();
+			final int limit = PageMetadata.getLimit(view);
+			final int header = PageMetadata.chunkHeaderSize(view);
+			final int mask = PageMetadata.alignMask(view);
+			// the consumer may keep the chunks
+			escape();
+			int count = 0;
+			while (count < max && view.position() < limit) {
+				final int chunkSize = view.getInt(view.position());
+				if ((chunkSize & FRAGMENT_FLAGS) != 0) {
+					break;
+				}
+				view.position(view.position() + header);
+				view.limit(view.position() + chunkSize);
+				final ByteBuffer result = view.slice();
+				view.limit(view.capacity());
+				view.position(PageMetadata.align(view.position() + chunkSize, mask));
+				consumer.accept(result);
+				count++;
+			}
+			return count;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+			throw new CacheException("error reading data", ex);
+		} catch (IllegalArgumentException ex) {
+			throw new CacheException("error reading data, read buffer is " + view, ex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * a read only channel of the page file for transferTo, the caller closes the channel
+	 */
+	@Override
+	public FileChannel openReadChannel() {
+		try {
+			return FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+		} catch (IOException ex) {
+			throw new CacheException("error opening file, file: '" + cacheFile + "'", ex);
+		}
+	}
+
+	/**
+	 * send the committed chunks after the view's position to target without copying them
+	 * into the java heap, the kernel reads directly from the page cache, in framed mode the
+	 * records are sent with their int size in front like they are stored in the file,
+	 * otherwise only the payload is sent, the checksums of a page are never sent
+	 *
+	 * only whole chunks are sent, at least one chunk even if it is larger than maxBytes,
+	 * target must be a blocking channel, returns the number of bytes sent
+	 */
+	@Override
+	public long transferTo(ByteBuffer view, FileChannel channel, WritableByteChannel target,
+			long maxBytes, boolean framed) {
+		try {
+			readLock.lock();
+			final int limit = PageMetadata.getLimit(view);
+			final int header = PageMetadata.chunkHeaderSize(view);
+			final int mask = PageMetadata.alignMask(view);
+			final int start = view.position();
+			int position = start;
+			long total = 0;
+			if (framed && header > INT_SIZE) {
+				// the size is written without the checksum, the payload is transferred
+				final ByteBuffer size = ByteBuffer.allocate(INT_SIZE);
+				while (position < limit) {
+					int chunkSize = view.getInt(position);
+					if ((chunkSize & FRAGMENT_FLAGS) != 0
+							|| (total > 0 && total + INT_SIZE + chunkSize > maxBytes)) {
+						break;
+					}
+					size.clear();
+					size.putInt(0, chunkSize);
+					while (size.hasRemaining()) {
+						target.write(size);
+					}
+					transferFully(channel, fileOffset + position + header, chunkSize, target);
+					total += INT_SIZE + chunkSize;
+					position = PageMetadata.align(position + header + chunkSize, mask);
+				}
+			} else if (framed) {
+				// runs of records, a run ends at the padding behind a record
+				int runStart = start;
+				long run = 0;
+				while (position < limit) {
+					int chunkSize = view.getInt(position);
+					int recordSize = INT_SIZE + chunkSize;
+					if ((chunkSize & FRAGMENT_FLAGS) != 0
+							|| (total > 0 && total + recordSize > maxBytes)) {
+						break;
+					}
+					total += recordSize;
+					run += recordSize;
+					int next = PageMetadata.align(position + recordSize, mask);
+					if (next != position + recordSize) {
+						transferFully(channel, fileOffset + runStart, run, target);
+						runStart = next;
+						run = 0;
+					}
+					position = next;
+				}
+				transferFully(channel, fileOffset + runStart, run, target);
+			} else {
+				// one transfer for each payload
+				while (position < limit) {
+					int chunkSize = view.getInt(position);
+					if ((chunkSize & FRAGMENT_FLAGS) != 0
+							|| (total > 0 && total + chunkSize > maxBytes)) {
+						break;
+					}
+					transferFully(channel, fileOffset + position + header, chunkSize, target);
+					total += chunkSize;
+					position = PageMetadata.align(position + header + chunkSize, mask);
+				}
+			}
+			view.position(position);
+			return total;
+		} catch (IndexOutOfBoundsException ex) {
+			throw new CacheException("error reading data", ex);
+		} catch (IOException ex) {
+			throw new CacheException("error transferring data, file: '" + cacheFile + "'", ex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	private static void transferFully(FileChannel channel, long position, long count,
+			WritableByteChannel target) throws IOException {
+		long done = 0;
+		while (done < count) {
+			done += channel.transferTo(position + done, count - done, target);
+		}
+	}
+
+	private ByteBuffer threadReadBuffer() {
+		ByteBuffer localReadBuffer = readBuffer.get();
+		if (localReadBuffer == null) {
+			throw new CacheException("read buffer for the current thread is not initialized");
+		}
+		return localReadBuffer;
+	}
+
 	/**
 	 * close the thread local read buffer
 	 */
@@ -310,38 +1430,41 @@ public class PageImpl implements IPage {
 			readLock.lock();
 			ByteBuffer localReadBuffer = readBuffer.get();
 			if (localReadBuffer != null) {
-				destroyByteBuffer(localReadBuffer);
 				readBuffer.remove();
+				closeReadView(localReadBuffer);
 			}
 		} finally {
 			readLock.unlock();
 		}
 	}
 
-	// run the cleaner on the ByteBuffer, this seems to be common practice
-	// however we might run into trouble when oracle changes the API
-	// see: http://stackoverflow.com/questions/1854398/how-to-garbage-collect-a-direct-buffer-java
-	private void destroyByteBuffer(Buffer buffer) {
-		try {
-			if (!buffer.isDirect()) {
-				return;
-			}
-			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
-			cleanerMethod.setAccessible(true);
-			Object cleaner = cleanerMethod.invoke(buffer);
-			if (cleaner == null) {
-				return;
+	private PageMetadata metaData() {
+		PageMetadata result = metaData;
+		if (result == null) {
+			result = new PageMetadata(readHeader());
+			metaData = result;
+		}
+		return result;
+	}
+
+	/**
+	 * read the header and the index of this page from the file
+	 */
+	private ByteBuffer readHeader() {
+		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "r");
+				FileChannel channel = rand.getChannel()) {
+
+			ByteBuffer header = ByteBuffer.allocate(PageMetadata.dataOffset(fileSize));
+			while (header.hasRemaining() && channel.read(header, fileOffset + header.position()) > 0) {
+				// read until the header is complete
 			}
-			Method cleanMethod = cleaner.getClass().getMethod("clean");
-			cleanMethod.setAccessible(true);
-			cleanMethod.invoke(cleaner);
+			header.clear();
+			return header;
 
-		} catch (InvocationTargetException 
-				| NoSuchMethodException 
-				| SecurityException 
-				| IllegalAccessException 
-				| IllegalArgumentException ex) {
-			throw new CacheException("ByteBuffer can't be destroyed" , ex);
+		} catch (FileNotFoundException ex) {
+			throw new CacheException("error finding file, file: '" + cacheFile + "'", ex);
+		} catch (IOException ex) {
+			throw new CacheException("error reading header, file: '" + cacheFile + "'", ex);
 		}
 	}
 
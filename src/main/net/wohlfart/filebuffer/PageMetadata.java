@@ -3,57 +3,298 @@ package net.wohlfart.filebuffer;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 /**
- * 
- *
+ * the header of a page, layout:
+ *    index, limit, key, last timestamp, index capacity, index count, flags, page size
+ * the key is the timestamp of the first chunk or just above the key of the previous page
+ * if that page ended with the same timestamp, the last timestamp starts with the first chunk,
+ * the long fields are at multiples of eight so the limit can be published atomically,
+ * the page size finds the segments of a file without the catalog, 0 in older pages
+ * followed by a sparse timestamp index, each entry is a timestamp and the offset
+ * of the chunk written at that timestamp, the chunk data start after the index
  */
 class PageMetadata {
-	
+
     private static volatile long nextPageIndex = 1; // should be kept as instance in the handler
 
     private static final int INDEX_POS = 0;
     private static final int LIMIT_POS = 8;
+    private static final int TIMESTAMP_POS = 16;
+    private static final int LAST_TIMESTAMP_POS = 24;
+    private static final int INDEX_CAPACITY_POS = 32;
+    private static final int INDEX_COUNT_POS = 36;
+    private static final int FLAGS_POS = 40;
+    private static final int SIZE_POS = 44;
+
+	static final int METADATA_SIZE = PageImpl.LONG_SIZE + PageImpl.LONG_SIZE
+			+ PageImpl.LONG_SIZE + PageImpl.LONG_SIZE
+			+ PageImpl.INT_SIZE + PageImpl.INT_SIZE
+			+ PageImpl.INT_SIZE + PageImpl.INT_SIZE;
+
+	// the chunks are stored in compressed blocks
+	static final int FLAG_COMPRESSED = 1;
+	// each chunk has a checksum after its size
+	static final int FLAG_CHECKSUM = 2;
+	// the records start at multiples of four so their size can be accessed atomically
+	static final int FLAG_ALIGNED = 4;
+	static final int ALIGN_MASK = PageImpl.INT_SIZE - 1;
 
-	static final int METADATA_SIZE = PageImpl.LONG_SIZE + PageImpl.LONG_SIZE;  
-	
 	private static final int HEADER_OFFSET = METADATA_SIZE;
 
+	// one index entry: timestamp and offset of the chunk
+	static final int INDEX_ENTRY_SIZE = PageImpl.LONG_SIZE + PageImpl.LONG_SIZE;
+	// roughly one index entry for each INDEX_SPACING bytes of the file
+	static final int INDEX_SPACING = 1024 * 4;
+	static final int MAX_INDEX_CAPACITY = 1024;
+
 
     private final long bufferIndex;
-	
+    private final long timestamp;
+    private final int dataOffset;
+    // only final for a closed page
+    private final long lastTimestamp;
+    private final long limit;
+    private final int flags;
+
+	/**
+	 * publish the limit with a release store, the chunk data written before is visible
+	 * to any reader that sees the new limit
+	 */
 	static void setLimit(ByteBuffer writeBuffer, long limit) {
-        writeBuffer.putLong(LIMIT_POS, limit);		
+		MemoryAccess.putOrderedLong(writeBuffer, LIMIT_POS, limit);
+	}
+
+	static boolean compareAndSetLimit(ByteBuffer writeBuffer, long expect, long update) {
+		return MemoryAccess.compareAndSwapLong(writeBuffer, LIMIT_POS, expect, update);
+	}
+
+	static int getLimit(ByteBuffer buffer) {
+		return (int) MemoryAccess.getLongVolatile(buffer, LIMIT_POS);
+	}
+
+	static long getLastTimestamp(ByteBuffer buffer) {
+		return MemoryAccess.getLongVolatile(buffer, LAST_TIMESTAMP_POS);
+	}
+
+	/**
+	 * the bytes in front of each chunk payload, the size and the optional checksum
+	 */
+	static int chunkHeaderSize(ByteBuffer buffer) {
+		return (buffer.getInt(FLAGS_POS) & FLAG_CHECKSUM) != 0
+				? PageImpl.INT_SIZE + PageImpl.INT_SIZE : PageImpl.INT_SIZE;
+	}
+
+	/**
+	 * added to the end of a record and masked off to get the start of the next record,
+	 * zero for pages written before the records were aligned
+	 */
+	static int alignMask(ByteBuffer buffer) {
+		return (buffer.getInt(FLAGS_POS) & FLAG_ALIGNED) != 0 ? ALIGN_MASK : 0;
+	}
+
+	/**
+	 * the size of the page or segment, 0 if the page was written before the size was stored
+	 */
+	static int getFileSize(ByteBuffer buffer) {
+		return buffer.getInt(SIZE_POS);
+	}
+
+	static int align(int offset, int mask) {
+		return (offset + mask) & ~mask;
+	}
+
+	/**
+	 * cut the data at end, index entries of later chunks are removed
+	 */
+	static void truncate(ByteBuffer buffer, int end) {
+		int count = buffer.getInt(INDEX_COUNT_POS);
+		while (count > 0 && buffer.getLong(HEADER_OFFSET + (count - 1) * INDEX_ENTRY_SIZE + PageImpl.LONG_SIZE) >= end) {
+			count--;
+		}
+		buffer.putInt(INDEX_COUNT_POS, count);
+		setLimit(buffer, end);
+	}
+
+	/**
+	 * make sure new pages get an index above the index of an existing page
+	 */
+	static synchronized void reservePageIndex(long index) {
+		if (nextPageIndex <= index) {
+			nextPageIndex = index + 1;
+		}
+	}
+
+	/**
+	 * number of index entries for a page of the given size, small pages don't have an index
+	 */
+	static int indexCapacity(int fileSize) {
+		return Math.min(MAX_INDEX_CAPACITY, fileSize / INDEX_SPACING);
 	}
-	
-	static int getLimit(ByteBuffer writeBuffer) {
-		return (int) writeBuffer.getLong(LIMIT_POS);
+
+	/**
+	 * the offset of the first chunk in a page of the given size
+	 */
+	static int dataOffset(int fileSize) {
+		return HEADER_OFFSET + indexCapacity(fileSize) * INDEX_ENTRY_SIZE;
 	}
-	
-	
+
     /**
-     * initializes the write buffer with the header information and sets the position of the 
-     * buffer just after the header
+     * initializes the write buffer with the header information and sets the position of the
+     * buffer just after the header and the index
      */
-	static void writeInitialHeader(MappedByteBuffer writeBuffer) {
-        writeBuffer.putLong(INDEX_POS, nextPageIndex++);
-        writeBuffer.putLong(LIMIT_POS, HEADER_OFFSET);
-        writeBuffer.position(HEADER_OFFSET);
+	static void writeInitialHeader(MappedByteBuffer writeBuffer, long timestamp, long firstTimestamp, int flags) {
+		int dataOffset = dataOffset(writeBuffer.capacity());
+        writeBuffer.putLong(INDEX_POS, nextIndex());
+        writeBuffer.putLong(LIMIT_POS, dataOffset);
+        writeBuffer.putLong(TIMESTAMP_POS, timestamp);
+        writeBuffer.putLong(LAST_TIMESTAMP_POS, firstTimestamp);
+        writeBuffer.putInt(INDEX_CAPACITY_POS, indexCapacity(writeBuffer.capacity()));
+        writeBuffer.putInt(INDEX_COUNT_POS, 0);
+        writeBuffer.putInt(FLAGS_POS, flags);
+        writeBuffer.putInt(SIZE_POS, writeBuffer.capacity());
+        writeBuffer.position(dataOffset);
+	}
+
+	private static synchronized long nextIndex() {
+		return nextPageIndex++;
+	}
+
+	/**
+	 * called for each chunk written at offset, an index entry is added if the timestamp
+	 * increased and there is enough space since the last entry
+	 */
+	static void updateIndex(ByteBuffer writeBuffer, long timestamp, long offset) {
+		updateLastTimestamp(writeBuffer, timestamp);
+		int capacity = writeBuffer.getInt(INDEX_CAPACITY_POS);
+		int count = writeBuffer.getInt(INDEX_COUNT_POS);
+		if (count >= capacity) {
+			return;
+		}
+		if (count > 0) {
+			int last = HEADER_OFFSET + (count - 1) * INDEX_ENTRY_SIZE;
+			if (timestamp <= writeBuffer.getLong(last)) {
+				return;
+			}
+			long spacing = (writeBuffer.capacity() - HEADER_OFFSET) / capacity;
+			if (offset - writeBuffer.getLong(last + PageImpl.LONG_SIZE) < spacing) {
+				return;
+			}
+		}
+		int entry = HEADER_OFFSET + count * INDEX_ENTRY_SIZE;
+		writeBuffer.putLong(entry, timestamp);
+		writeBuffer.putLong(entry + PageImpl.LONG_SIZE, offset);
+		writeBuffer.putInt(INDEX_COUNT_POS, count + 1);
 	}
 
 	/**
-	 * create a metatdata, after returning the buffers position is after the header
+	 * raise the last timestamp of the page, concurrent writers don't lower it
+	 */
+	static void updateLastTimestamp(ByteBuffer writeBuffer, long timestamp) {
+		long current;
+		do {
+			current = MemoryAccess.getLongVolatile(writeBuffer, LAST_TIMESTAMP_POS);
+			if (timestamp <= current) {
+				return;
+			}
+		} while (!MemoryAccess.compareAndSwapLong(writeBuffer, LAST_TIMESTAMP_POS, current, timestamp));
+	}
+
+	/**
+	 * binary search in the index for the offset of the last indexed chunk before timestamp,
+	 * all chunks at or after timestamp can be found by reading from the returned offset
+	 */
+	static long findOffset(ByteBuffer buffer, long timestamp) {
+		int low = 0;
+		int high = buffer.getInt(INDEX_COUNT_POS) - 1;
+		long result = HEADER_OFFSET + buffer.getInt(INDEX_CAPACITY_POS) * INDEX_ENTRY_SIZE;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = HEADER_OFFSET + mid * INDEX_ENTRY_SIZE;
+			if (buffer.getLong(entry) < timestamp) {
+				result = buffer.getLong(entry + PageImpl.LONG_SIZE);
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * binary search in the index for the offset of the first indexed chunk after timestamp,
+	 * the limit if there is none, all chunks up to timestamp are in front of the returned offset
+	 */
+	static int findEndOffset(ByteBuffer buffer, long timestamp) {
+		int low = 0;
+		int high = buffer.getInt(INDEX_COUNT_POS) - 1;
+		int result = getLimit(buffer);
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = HEADER_OFFSET + mid * INDEX_ENTRY_SIZE;
+			if (buffer.getLong(entry) > timestamp) {
+				result = Math.min(result, (int) buffer.getLong(entry + PageImpl.LONG_SIZE));
+				high = mid - 1;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * create a metatdata, after returning the buffers position is after the header and the index
 	 */
 	PageMetadata(ByteBuffer buffer) {
 		bufferIndex = buffer.getLong(INDEX_POS);
-		buffer.position(HEADER_OFFSET);
+		timestamp = buffer.getLong(TIMESTAMP_POS);
+		dataOffset = HEADER_OFFSET + buffer.getInt(INDEX_CAPACITY_POS) * INDEX_ENTRY_SIZE;
+		lastTimestamp = buffer.getLong(LAST_TIMESTAMP_POS);
+		limit = getLimit(buffer);
+		flags = buffer.getInt(FLAGS_POS);
+		buffer.position(dataOffset);
+	}
+
+	/**
+	 * the metadata of a closed page from the page catalog
+	 */
+	PageMetadata(long bufferIndex, long timestamp, long lastTimestamp, long limit, int fileSize, int flags) {
+		this.bufferIndex = bufferIndex;
+		this.timestamp = timestamp;
+		this.lastTimestamp = lastTimestamp;
+		this.limit = limit;
+		this.dataOffset = dataOffset(fileSize);
+		this.flags = flags;
 	}
-    
+
 	long getIndex() {
 		return bufferIndex;
 	}
 
 	public long getTimestamp() {
-		// TODO Auto-generated method stub
-		return 0;
+		return timestamp;
+	}
+
+	int getDataOffset() {
+		return dataOffset;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	long getLimit() {
+		return limit;
+	}
+
+	int getFlags() {
+		return flags;
+	}
+
+	boolean isCompressed() {
+		return (flags & FLAG_COMPRESSED) != 0;
+	}
+
+	boolean hasChecksums() {
+		return (flags & FLAG_CHECKSUM) != 0;
 	}
 
 }
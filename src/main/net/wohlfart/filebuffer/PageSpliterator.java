@@ -0,0 +1,222 @@
+package net.wohlfart.filebuffer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * the chunks of a range of pages for a parallel scan, a spliterator is split at page boundaries
+ * and reads its pages with its own views, the chunks are copies so they stay valid after the
+ * view of their page is released
+ *
+ * the range starts at the indexed chunk before the first timestamp and ends in front of the
+ * first indexed chunk after the last timestamp, like setReadStart it can include chunks shortly
+ * before and after the range
+ *
+ * a chunk that was stored as fragments belongs to the page of its first fragment, the
+ * spliterator of that page reads the rest from the following pages, a chunk that isn't
+ * complete yet is skipped
+ *
+ * a spliterator releases its last view when it reaches the end, closeAll releases the views of
+ * all spliterators of a scan that stopped early
+ */
+class PageSpliterator implements Spliterator<ByteBuffer> {
+
+	private final IPageHandler pageHandler;
+	private final List<IPage> pages;
+	private final long fromTimestamp;
+	private final long toTimestamp;
+	// the spliterators of the scan
+	private final Queue<PageSpliterator> splits;
+
+	// the next page to open and the end of the range
+	private int origin;
+	private int fence;
+
+	private IPage page;
+	private ByteBuffer view;
+	private ByteBuffer chunkView;
+	private int end;
+	private BlockReader blocks;
+
+	PageSpliterator(IPageHandler pageHandler, List<IPage> pages, long fromTimestamp, long toTimestamp) {
+		this(pageHandler, pages, fromTimestamp, toTimestamp, new ConcurrentLinkedQueue<>(), 0, pages.size());
+	}
+
+	private PageSpliterator(IPageHandler pageHandler, List<IPage> pages, long fromTimestamp, long toTimestamp,
+			Queue<PageSpliterator> splits, int origin, int fence) {
+		this.pageHandler = pageHandler;
+		this.pages = pages;
+		this.fromTimestamp = fromTimestamp;
+		this.toTimestamp = toTimestamp;
+		this.splits = splits;
+		this.origin = origin;
+		this.fence = fence;
+		splits.add(this);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+		while (true) {
+			if (blocks != null && blocks.hasRemaining()) {
+				action.accept(blocks.read());
+				return true;
+			}
+			if (page == null) {
+				if (origin >= fence) {
+					close();
+					return false;
+				}
+				open(pages.get(origin++));
+				continue;
+			}
+			if (view.position() >= end) {
+				closePage();
+				continue;
+			}
+			if (blocks != null) {
+				page.nextChunk(view, chunkView);
+				blocks.load(chunkView);
+				continue;
+			}
+			int record = page.peekRecord(view);
+			if ((record & PageImpl.FRAGMENT_CONTINUED) != 0) {
+				// read with the first fragment
+				page.nextChunk(view, chunkView);
+				continue;
+			}
+			ByteBuffer chunk = (record & PageImpl.FRAGMENT_MORE) != 0 ? readFragments() : copy();
+			if (chunk != null) {
+				action.accept(chunk);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * the pages are split in half before the first chunk is read, the first half is returned
+	 */
+	@Override
+	public Spliterator<ByteBuffer> trySplit() {
+		int mid = (origin + fence) >>> 1;
+		if (page != null || mid <= origin) {
+			return null;
+		}
+		PageSpliterator prefix = new PageSpliterator(pageHandler, pages, fromTimestamp, toTimestamp, splits, origin, mid);
+		origin = mid;
+		return prefix;
+	}
+
+	// the number of chunks is only known after reading the pages
+	@Override
+	public long estimateSize() {
+		return page == null && origin >= fence ? 0 : Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * release the views of all spliterators of the scan, call after the scan is done
+	 */
+	void closeAll() {
+		for (PageSpliterator split : splits) {
+			split.close();
+		}
+	}
+
+	private void close() {
+		closePage();
+		if (blocks != null) {
+			blocks.close();
+			blocks = null;
+		}
+	}
+
+	private void closePage() {
+		if (page != null) {
+			page.closeReadView(view);
+		}
+		page = null;
+		view = null;
+		chunkView = null;
+	}
+
+	private void open(IPage nextPage) {
+		page = nextPage;
+		view = nextPage.createReadView(fromTimestamp);
+		chunkView = view.duplicate();
+		end = PageMetadata.findEndOffset(view, toTimestamp);
+		if (nextPage.isCompressed()) {
+			if (blocks == null) {
+				blocks = new BlockReader();
+			}
+			blocks.clear();
+		} else if (blocks != null) {
+			blocks.close();
+			blocks = null;
+		}
+	}
+
+	private ByteBuffer copy() {
+		int size = page.nextChunk(view, chunkView);
+		ByteBuffer chunk = ByteBuffer.allocate(size);
+		chunk.put(chunkView);
+		chunk.flip();
+		return chunk;
+	}
+
+	// the fragments of the chunk at the current position joined, null if the rest is missing
+	private ByteBuffer readFragments() {
+		ByteBuffer chunk = ByteBuffer.allocate(0);
+		IPage current = page;
+		ByteBuffer currentView = view;
+		ByteBuffer fragment = chunkView;
+		try {
+			int record = current.peekRecord(currentView);
+			while (true) {
+				current.nextChunk(currentView, fragment);
+				chunk = append(chunk, fragment);
+				if ((record & PageImpl.FRAGMENT_MORE) == 0) {
+					chunk.flip();
+					return chunk;
+				}
+				IPage nextPage = pageHandler.getNextPage(current);
+				if (nextPage == null) {
+					return null;
+				}
+				if (current != page) {
+					current.closeReadView(currentView);
+				}
+				current = nextPage;
+				currentView = nextPage.createReadView(Long.MIN_VALUE);
+				fragment = currentView.duplicate();
+				record = current.peekRecord(currentView);
+				if (record == IBuffer.NO_DATA || (record & PageImpl.FRAGMENT_CONTINUED) == 0) {
+					return null;
+				}
+			}
+		} finally {
+			if (current != page) {
+				current.closeReadView(currentView);
+			}
+		}
+	}
+
+	private static ByteBuffer append(ByteBuffer chunk, ByteBuffer fragment) {
+		if (chunk.remaining() < fragment.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(chunk.capacity() * 2, chunk.position() + fragment.remaining()));
+			chunk.flip();
+			larger.put(chunk);
+			chunk = larger;
+		}
+		chunk.put(fragment);
+		return chunk;
+	}
+
+}
@@ -0,0 +1,196 @@
+package net.wohlfart.filebuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+/**
+ * independent buffers in the subdirectories of the cache dir, every partition has its own
+ * page handler and write page so producers of different partitions don't share a file
+ *
+ * enqueue routes a chunk by the hash of its key or round robin, the chunks of a partition
+ * are read in the order they were enqueued, there is no order across partitions, the
+ * partitions are concurrent so any number of producers can enqueue into the same partition
+ */
+public class PartitionedBuffer implements Closeable {
+
+	private static final String PARTITION_PREFIX = "partition-";
+
+	private String cacheDir = "/tmp";
+	private int partitions = Runtime.getRuntime().availableProcessors();
+	private int filesize;
+	private Compression compression = Compression.NONE;
+	private boolean checksums;
+	private boolean concurrent = true;
+	private DurabilityPolicy durabilityPolicy = DurabilityPolicy.PAGE;
+
+	private PageHandler[] pageHandlers;
+	private volatile BufferImpl[] buffers;
+	private final AtomicInteger roundRobin = new AtomicInteger();
+	// the partition where the next dequeue starts
+	private int readStart;
+
+	/**
+	 * the partitions are the subdirectories partition-0 to partition-(n-1)
+	 */
+	public void setCacheDir(String cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * the number of partitions, must not change for an existing cache dir or the keys
+	 * end up in other partitions
+	 */
+	public void setPartitions(int partitions) {
+		if (partitions < 1) {
+			throw new CacheException("at least one partition is needed, got " + partitions);
+		}
+		this.partitions = partitions;
+	}
+
+	public void setFilesize(int filesize) {
+		this.filesize = filesize;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * allow multiple threads to enqueue into the same partition, the default, turn it off
+	 * only if every partition has a single producer
+	 */
+	public void setConcurrent(boolean concurrent) {
+		this.concurrent = concurrent;
+	}
+
+	public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+		this.durabilityPolicy = durabilityPolicy;
+	}
+
+	/**
+	 * create the partitions and load their pages
+	 */
+	public synchronized void init() {
+		if (buffers != null) {
+			throw new CacheException("partitioned buffer is already initialized");
+		}
+		pageHandlers = new PageHandler[partitions];
+		BufferImpl[] localBuffers = new BufferImpl[partitions];
+		for (int i = 0; i < partitions; i++) {
+			File dir = new File(cacheDir, PARTITION_PREFIX + i);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new CacheException("can't create directory for partition, dir: '" + dir + "'");
+			}
+			PageFactory pageFactory = new PageFactory();
+			pageFactory.setCacheDir(dir.getPath());
+			if (filesize > 0) {
+				pageFactory.setFilesize(filesize);
+			}
+			pageFactory.setCompression(compression);
+			pageFactory.setChecksums(checksums);
+			PageHandler pageHandler = new PageHandler();
+			pageHandler.setPageFactory(pageFactory);
+			pageHandler.init();
+			BufferImpl buffer = new BufferImpl();
+			buffer.setPageHandler(pageHandler);
+			buffer.setConcurrent(concurrent);
+			buffer.setDurabilityPolicy(durabilityPolicy);
+			pageHandlers[i] = pageHandler;
+			localBuffers[i] = buffer;
+		}
+		buffers = localBuffers;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * the partition of the key, the hash is spread so sequential keys are distributed
+	 */
+	public int partition(long key) {
+		return (int) ((HashCommon.murmurHash3(key) >>> 1) % partitions);
+	}
+
+	/**
+	 * the buffer of one partition for reading, a consumer of a partition has the usual
+	 * cursors and positions of a buffer
+	 */
+	public IBuffer getPartition(int partition) {
+		return buffers()[partition];
+	}
+
+	/**
+	 * persist the chunk in the partition of the key, the chunks of a key keep their order
+	 */
+	public void enqueue(long key, ByteBuffer chunk, long timestamp) throws CacheException {
+		buffers()[partition(key)].enqueue(chunk, timestamp);
+	}
+
+	/**
+	 * persist the chunk in the next partition round robin
+	 */
+	public void enqueue(ByteBuffer chunk, long timestamp) throws CacheException {
+		BufferImpl[] localBuffers = buffers();
+		localBuffers[(roundRobin.getAndIncrement() & Integer.MAX_VALUE) % localBuffers.length].enqueue(chunk, timestamp);
+	}
+
+	/**
+	 * passes up to max chunks from all partitions to the consumer, the partitions are read
+	 * one after the other starting with a different partition on each call, returns the
+	 * number of chunks
+	 */
+	public synchronized int dequeue(int max, Consumer<? super ByteBuffer> consumer) throws CacheException {
+		BufferImpl[] localBuffers = buffers();
+		int start = readStart;
+		readStart = (start + 1) % localBuffers.length;
+		int count = 0;
+		for (int i = 0; i < localBuffers.length && count < max; i++) {
+			count += localBuffers[(start + i) % localBuffers.length].dequeue(max - count, consumer);
+		}
+		return count;
+	}
+
+	/**
+	 * the time range of all partitions in one parallel stream, see BufferImpl.scan
+	 */
+	public Stream<ByteBuffer> scan(long fromTimestamp, long toTimestamp) throws CacheException {
+		Stream<ByteBuffer> result = Stream.empty();
+		for (BufferImpl buffer : buffers()) {
+			result = Stream.concat(result, buffer.scan(fromTimestamp, toTimestamp));
+		}
+		return result.parallel();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (buffers == null) {
+			return;
+		}
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i].close();
+			pageHandlers[i].close();
+		}
+		buffers = null;
+	}
+
+	private BufferImpl[] buffers() {
+		BufferImpl[] localBuffers = buffers;
+		if (localBuffers == null) {
+			throw new CacheException("partitioned buffer is not initialized");
+		}
+		return localBuffers;
+	}
+
+}
@@ -0,0 +1,37 @@
+package net.wohlfart.filebuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * maps the pages as memory segments, this is the version for VMs without the foreign
+ * memory API, the implementation is in the java 22 part of the multi release jar
+ */
+final class SegmentMapper extends Mapper {
+
+	static boolean isAvailable() {
+		return false;
+	}
+
+	SegmentMapper() {
+		throw new CacheException("memory segments need java 22 or later");
+	}
+
+	@Override
+	MappedByteBuffer map(FileChannel channel, MapMode mode, long offset, int size) {
+		throw new CacheException("memory segments need java 22 or later");
+	}
+
+	@Override
+	void force(MappedByteBuffer buffer) {
+		throw new CacheException("memory segments need java 22 or later");
+	}
+
+	@Override
+	void unmap(ByteBuffer buffer) {
+		throw new CacheException("memory segments need java 22 or later");
+	}
+
+}
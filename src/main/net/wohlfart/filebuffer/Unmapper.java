@@ -0,0 +1,108 @@
+package net.wohlfart.filebuffer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * unmaps mapped buffers without waiting for the garbage collector, the mechanism is picked
+ * once when the class is loaded: Unsafe.invokeCleaner on java 9 and later, the cleaner of the
+ * buffer on java 7 and 8, if neither is available the mapping is left to the garbage collector
+ *
+ * a buffer must not be used after it was unmapped, not even through a duplicate or a slice,
+ * the access would crash the VM, the callers make sure no reader or writer is left, the read
+ * mappings of a page are only unmapped as long as the page never handed out a slice of them
+ */
+final class Unmapper {
+
+	enum Mechanism {
+		INVOKE_CLEANER, LEGACY_CLEANER, GARBAGE_COLLECTOR
+	}
+
+	private static final Mechanism MECHANISM;
+	// (ByteBuffer)void or null if we leave the buffer to the garbage collector
+	private static final MethodHandle UNMAP;
+
+	static {
+		MethodHandle unmap = invokeCleaner();
+		Mechanism mechanism = Mechanism.INVOKE_CLEANER;
+		if (unmap == null) {
+			unmap = legacyCleaner();
+			mechanism = Mechanism.LEGACY_CLEANER;
+		}
+		if (unmap == null) {
+			mechanism = Mechanism.GARBAGE_COLLECTOR;
+		}
+		UNMAP = unmap;
+		MECHANISM = mechanism;
+	}
+
+	private Unmapper() {
+		// static methods only
+	}
+
+	static Mechanism mechanism() {
+		return MECHANISM;
+	}
+
+	/**
+	 * release the mapping of the buffer, does nothing for heap buffers and if the
+	 * VM doesn't let us unmap
+	 */
+	static void unmap(ByteBuffer buffer) {
+		if (UNMAP == null || !buffer.isDirect()) {
+			return;
+		}
+		try {
+			UNMAP.invokeExact(buffer);
+		} catch (IllegalArgumentException ex) {
+			throw new CacheException("only the mapped buffer can be unmapped, not a duplicate or a slice", ex);
+		} catch (Throwable ex) {
+			throw new CacheException("ByteBuffer can't be destroyed", ex);
+		}
+	}
+
+	// java 9 and later, the cleaner itself is not accessible anymore
+	private static MethodHandle invokeCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			MethodHandle invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+					MethodType.methodType(void.class, ByteBuffer.class));
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return invokeCleaner.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	// java 7 and 8, the mapped buffers implement sun.nio.ch.DirectBuffer
+	private static MethodHandle legacyCleaner() {
+		try {
+			Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+			Class<?> cleanerClass = Class.forName("sun.misc.Cleaner");
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle cleaner = lookup.findVirtual(directBuffer, "cleaner", MethodType.methodType(cleanerClass));
+			MethodHandle clean = lookup.findVirtual(cleanerClass, "clean", MethodType.methodType(void.class));
+			MethodHandle nonNull = lookup.findStatic(Unmapper.class, "nonNull",
+					MethodType.methodType(boolean.class, Object.class));
+			// duplicates and slices don't have a cleaner
+			MethodHandle cleanIfPresent = MethodHandles.guardWithTest(
+					nonNull.asType(MethodType.methodType(boolean.class, cleanerClass)),
+					clean,
+					MethodHandles.dropArguments(MethodHandles.constant(Void.class, null).asType(
+							MethodType.methodType(void.class)), 0, cleanerClass));
+			return MethodHandles.filterArguments(cleanIfPresent, 0, cleaner)
+					.asType(MethodType.methodType(void.class, ByteBuffer.class));
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	private static boolean nonNull(Object object) {
+		return object != null;
+	}
+
+}
@@ -0,0 +1,57 @@
+package net.wohlfart.filebuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * how a tailing reader waits for the writer to commit the next chunk,
+ * spinning has the lowest latency but burns a core, parking is the cheapest
+ */
+public enum WaitStrategy {
+
+	SPIN {
+		@Override
+		void idle(int round) {
+			// busy spin
+		}
+	},
+
+	YIELD {
+		@Override
+		void idle(int round) {
+			Thread.yield();
+		}
+	},
+
+	PARK {
+		@Override
+		void idle(int round) {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	},
+
+	// spin first, then yield, then park
+	BACKOFF {
+		@Override
+		void idle(int round) {
+			if (round < SPIN_ROUNDS) {
+				return;
+			}
+			if (round < SPIN_ROUNDS + YIELD_ROUNDS) {
+				Thread.yield();
+				return;
+			}
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	};
+
+	private static final int SPIN_ROUNDS = 100;
+	private static final int YIELD_ROUNDS = 100;
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * called when no data was found, round counts the unsuccessful attempts
+	 */
+	abstract void idle(int round);
+
+}
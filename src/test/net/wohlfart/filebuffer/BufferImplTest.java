@@ -6,16 +6,42 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class BufferImplTest {
     long now = 0;
 
     private File dir;
+    // closed before the files are deleted
+    private final List<PageHandler> pageHandlers = new ArrayList<>();
 
     @Before
     public void prepare() throws IOException {
@@ -30,8 +56,19 @@ public class BufferImplTest {
 
     @After
     public void cleanup() {
+        for (PageHandler pageHandler : pageHandlers) {
+            try {
+                pageHandler.close();
+            } catch (Exception ex) {
+                // ignore
+            }
+        }
+        pageHandlers.clear();
         if (dir != null) {
             try {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
                 dir.delete();
             } catch (Exception ex) {
                 // ignore
@@ -39,6 +76,802 @@ public class BufferImplTest {
         }
     }
 
+    @Test
+    public void readAcrossPages() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+
+        buffer.setReadStart(0);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            assertEquals(timestamp, buffer.dequeue().getLong());
+        }
+        assertEquals(0, buffer.dequeue().remaining());
+        buffer.close();
+    }
+
+    @Test
+    public void readStart() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+
+        buffer.setReadStart(777);
+        long first = buffer.dequeue().getLong();
+        assertTrue("started after the timestamp: " + first, first <= 777);
+        assertTrue("started too early: " + first, first > 700);
+        for (long timestamp = first + 1; timestamp < 1000; timestamp++) {
+            assertEquals(timestamp, buffer.dequeue().getLong());
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void outOfOrder() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        // pages with the same timestamp get unique keys
+        for (int i = 0; i < 500; i++) {
+            buffer.enqueue(chunk(100, 50), 100);
+        }
+        try {
+            for (int i = 0; i < 500; i++) {
+                buffer.enqueue(chunk(50, 50), 50);
+            }
+            fail("the timestamp is before the last page");
+        } catch (CacheException ex) {
+            // expected
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void concurrentEnqueue() throws IOException, InterruptedException {
+        final BufferImpl buffer = createBuffer(1024 * 8);
+        buffer.setConcurrent(true);
+        final AtomicLong clock = new AtomicLong();
+        final int producers = 8;
+        final int chunks = 2000;
+
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int sequence = 0; sequence < chunks; sequence++) {
+                        ByteBuffer chunk = ByteBuffer.allocate(20);
+                        chunk.putInt(0, producer);
+                        chunk.putInt(4, sequence);
+                        buffer.enqueue(chunk, clock.incrementAndGet());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every producer's chunks are complete and in order
+        int[] next = new int[producers];
+        buffer.setReadStart(0);
+        for (int i = 0; i < producers * chunks; i++) {
+            ByteBuffer chunk = buffer.dequeue();
+            assertEquals(20, chunk.remaining());
+            int producer = chunk.getInt(0);
+            assertEquals(next[producer]++, chunk.getInt(4));
+        }
+        assertEquals(0, buffer.dequeue().remaining());
+        buffer.close();
+    }
+
+    @Test
+    public void tailingRead() throws IOException, InterruptedException {
+        final BufferImpl buffer = createBuffer(1024 * 8);
+        buffer.setWaitStrategy(WaitStrategy.YIELD);
+        final int chunks = 1000;
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (long timestamp = 0; timestamp < chunks; timestamp++) {
+                    buffer.enqueue(chunk(timestamp, 50), timestamp);
+                    if (timestamp % 100 == 0) {
+                        try {
+                            sleep(5);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+
+        // the reader starts before any data is written
+        buffer.setReadStart(0);
+        assertEquals(0, buffer.dequeue().remaining());
+        producer.start();
+        for (long timestamp = 0; timestamp < chunks; timestamp++) {
+            assertEquals(timestamp, buffer.dequeue(5, TimeUnit.SECONDS).getLong());
+        }
+        assertEquals(0, buffer.dequeue(10, TimeUnit.MILLISECONDS).remaining());
+        producer.join();
+        buffer.close();
+    }
+
+    @Test
+    public void batchReadWrite() throws IOException {
+        checkBatchReadWrite(false);
+        cleanup();
+        dir.mkdir();
+        checkBatchReadWrite(true);
+    }
+
+    private void checkBatchReadWrite(boolean concurrent) throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        buffer.setConcurrent(concurrent);
+        ByteBuffer[] chunks = new ByteBuffer[100];
+        long[] timestamps = new long[chunks.length];
+        for (int batch = 0; batch < 10; batch++) {
+            for (int i = 0; i < chunks.length; i++) {
+                timestamps[i] = batch * chunks.length + i;
+                chunks[i] = chunk(timestamps[i], 50);
+            }
+            buffer.enqueueBatch(chunks, timestamps);
+        }
+
+        buffer.setReadStart(0);
+        final long[] next = new long[1];
+        assertEquals(250, buffer.dequeue(250, chunk -> assertEquals(next[0]++, chunk.getLong())));
+        ByteBuffer[] target = new ByteBuffer[500];
+        assertEquals(500, buffer.drainTo(target));
+        for (ByteBuffer chunk : target) {
+            assertEquals(next[0]++, chunk.getLong());
+        }
+        assertEquals(250, buffer.drainTo(target));
+        assertEquals(999, target[249].getLong());
+        assertEquals(0, buffer.drainTo(target));
+
+        if (!concurrent) {
+            // a batch that starts before the last page ends is rejected on the next page
+            for (int i = 0; i < chunks.length; i++) {
+                timestamps[i] = 500;
+                chunks[i] = chunk(timestamps[i], 50);
+            }
+            try {
+                buffer.enqueueBatch(chunks, timestamps);
+                fail("the batch is out of order");
+            } catch (CacheException ex) {
+                // expected
+            }
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getCanonicalPath());
+        pageFactory.setFilesize(1024 * 8);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandlers.add(pageHandler);
+        BufferMetrics metrics = new BufferMetrics();
+        pageHandler.setMetrics(metrics);
+        pageHandler.init();
+        final BufferImpl buffer = new BufferImpl();
+        buffer.setPageHandler(pageHandler);
+        buffer.setConcurrent(true);
+        buffer.setDurabilityPolicy(DurabilityPolicy.GROUP_COMMIT);
+        final AtomicLong clock = new AtomicLong();
+
+        Thread[] threads = new Thread[4];
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[threads.length * 50];
+        for (int i = 0; i < threads.length; i++) {
+            final int producer = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        long timestamp = clock.incrementAndGet();
+                        buffer.enqueue(chunk(timestamp, 50), timestamp);
+                        futures[producer * 50 + j] = buffer.sync();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+        // the syncs that arrive during a force share the next one
+        assertTrue(metrics.getForceCount() < futures.length);
+        buffer.close();
+
+        // a sync after close fails
+        assertTrue(buffer.sync().isCompletedExceptionally());
+    }
+
+    @Test
+    public void periodicForce() throws Exception {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        buffer.setDurabilityPolicy(DurabilityPolicy.PERIODIC);
+        buffer.setForceIntervalMillis(10);
+        buffer.setForceIntervalBytes(1024);
+        for (long timestamp = 0; timestamp < 100; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        buffer.sync().get(10, TimeUnit.SECONDS);
+        buffer.close();
+
+        buffer = createBuffer(1024 * 8);
+        buffer.setReadStart(0);
+        assertEquals(100, buffer.drainTo(new ByteBuffer[200]));
+        buffer.close();
+    }
+
+    @Test
+    public void consumerCursors() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+
+        // cursors on the same thread don't share the position
+        ICursor first = buffer.openCursor("first");
+        ICursor second = buffer.openCursor("second");
+        for (long timestamp = 0; timestamp < 300; timestamp++) {
+            assertEquals(timestamp, first.dequeue().getLong());
+        }
+        for (long timestamp = 0; timestamp < 500; timestamp++) {
+            assertEquals(timestamp, second.dequeue().getLong());
+        }
+        assertEquals(0, buffer.dequeue().getLong());
+        first.close();
+        second.close();
+        buffer.close();
+
+        // the positions are restored by a new buffer
+        buffer = createBuffer(1024 * 8);
+        first = buffer.openCursor("first");
+        assertEquals(300, first.dequeue().getLong());
+        buffer.setConsumer("second");
+        assertEquals(500, buffer.dequeue().getLong());
+        first.close();
+        buffer.close();
+    }
+
+    @Test
+    public void dequeueToChannel() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+
+        // the payloads only, across all pages
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        assertEquals(500 * 50, buffer.dequeueTo(target, 500 * 50));
+        assertEquals(500 * 50, buffer.dequeueTo(target, Long.MAX_VALUE));
+        assertEquals(0, buffer.dequeueTo(target, Long.MAX_VALUE));
+        ByteBuffer sent = ByteBuffer.wrap(out.toByteArray());
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            assertEquals(timestamp, sent.getLong((int) timestamp * 50));
+        }
+
+        // the records as stored, at least one record is sent
+        ICursor cursor = buffer.openCursor("framed");
+        out.reset();
+        assertEquals(4 + 50, cursor.dequeueTo(target, 1, true));
+        assertEquals(9 * (4 + 50), cursor.dequeueTo(target, 10 * (4 + 50) - 1, true));
+        sent = ByteBuffer.wrap(out.toByteArray());
+        for (long timestamp = 0; timestamp < 10; timestamp++) {
+            assertEquals(50, sent.getInt());
+            assertEquals(timestamp, sent.getLong(sent.position()));
+            sent.position(sent.position() + 50);
+        }
+        assertEquals(10, cursor.dequeue().getLong());
+        cursor.close();
+        buffer.close();
+    }
+
+    @Test
+    public void dequeueWithoutAllocation() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        assertEquals(IBuffer.NO_DATA, buffer.dequeue(ByteBuffer.allocate(50)));
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+
+        // a chunk that doesn't fit stays, the result is the complement of its size
+        assertEquals(~50, buffer.dequeue(ByteBuffer.allocate(20)));
+        ByteBuffer target = ByteBuffer.allocateDirect(100);
+        for (long timestamp = 0; timestamp < 500; timestamp++) {
+            target.clear();
+            assertEquals(50, buffer.dequeue(target));
+            assertEquals(timestamp, target.getLong(0));
+        }
+        ByteBuffer view = buffer.dequeueView();
+        assertEquals(500, view.getLong(view.position()));
+        for (long timestamp = 501; timestamp < 1000; timestamp++) {
+            ByteBuffer next = buffer.dequeueView();
+            assertEquals(50, next.remaining());
+            assertEquals(timestamp, next.getLong(next.position()));
+        }
+        assertEquals(0, buffer.dequeueView().remaining());
+        assertEquals(IBuffer.NO_DATA, buffer.dequeue(target));
+        buffer.close();
+    }
+
+    @Test
+    public void readMappingRelease() throws IOException, InterruptedException {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getCanonicalPath());
+        pageFactory.setFilesize(1024 * 8);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandlers.add(pageHandler);
+        pageHandler.init();
+        BufferImpl buffer = new BufferImpl();
+        buffer.setPageHandler(pageHandler);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        MappedRegionCache cache = pageFactory.getRegionCache();
+
+        // views are only valid until the next call, a page is unmapped when the cursor leaves it
+        ICursor cursor = buffer.openCursor("views");
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            ByteBuffer view = cursor.dequeueView();
+            assertEquals(timestamp, view.getLong(view.position()));
+        }
+        assertTrue(cache.getMappedBytes() <= 1024 * 8);
+        cursor.close();
+        assertEquals(0, cache.getMappedBytes());
+
+        // dequeued chunks keep their mapping, the others are released when the chunks are collected
+        cursor = buffer.openCursor("chunks");
+        ByteBuffer first = cursor.dequeue();
+        for (long timestamp = 1; timestamp < 1000; timestamp++) {
+            assertEquals(timestamp, cursor.dequeue().getLong());
+        }
+        cursor.close();
+        for (int i = 0; i < 100 && cache.getMappedBytes() > 1024 * 8; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1024 * 8, cache.getMappedBytes());
+        assertEquals(0, first.getLong());
+        buffer.close();
+    }
+
+    @Test
+    public void compressedPages() throws Exception {
+        BufferImpl buffer = createBuffer(1024 * 8, Compression.DEFLATE);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        // the last block becomes visible with the force
+        buffer.sync().get();
+        assertTrue(dir.listFiles((file, name) -> name.matches("[0-9]+")).length < 4);
+
+        ICursor cursor = buffer.openCursor("compressed");
+        for (long timestamp = 0; timestamp < 300; timestamp++) {
+            ByteBuffer chunk = cursor.dequeue();
+            assertEquals(50, chunk.remaining());
+            assertEquals(timestamp, chunk.getLong());
+        }
+        cursor.close();
+        // the index points to blocks, so the read starts at a block before the timestamp
+        buffer.setReadStart(500);
+        long first = buffer.dequeue().getLong();
+        assertTrue("started after the timestamp: " + first, first <= 500);
+        assertEquals(first + 1, buffer.dequeue().getLong());
+        buffer.close();
+
+        // the position in the block is restored
+        buffer = createBuffer(1024 * 8, Compression.DEFLATE);
+        cursor = buffer.openCursor("compressed");
+        ByteBuffer target = ByteBuffer.allocate(100);
+        assertEquals(50, cursor.dequeue(target));
+        assertEquals(300, target.getLong(0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(699 * 50, cursor.dequeueTo(Channels.newChannel(out), Long.MAX_VALUE, false));
+        assertEquals(999, ByteBuffer.wrap(out.toByteArray()).getLong(698 * 50));
+        cursor.close();
+        buffer.close();
+    }
+
+    @Test
+    public void segmentBackend() throws Exception {
+        PageFactory pageFactory = new PageFactory();
+        // set when the tests run against the multi release jar on java 22
+        if (Boolean.getBoolean("filebuffer.segments")) {
+            assertTrue(PageBackend.MEMORY_SEGMENT.isAvailable());
+        }
+        if (!PageBackend.MEMORY_SEGMENT.isAvailable()) {
+            try {
+                pageFactory.setBackend(PageBackend.MEMORY_SEGMENT);
+                fail("memory segments are not available");
+            } catch (CacheException ex) {
+                // expected
+            }
+            return;
+        }
+        pageFactory.setBackend(PageBackend.MEMORY_SEGMENT);
+        pageFactory.setCacheDir(dir.getCanonicalPath());
+        pageFactory.setFilesize(1024 * 8);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandlers.add(pageHandler);
+        pageHandler.init();
+        BufferImpl buffer = new BufferImpl();
+        buffer.setPageHandler(pageHandler);
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        ICursor cursor = buffer.openCursor("segments");
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            assertEquals(timestamp, cursor.dequeue().getLong());
+        }
+        cursor.close();
+        buffer.close();
+
+        // the buffer view of a write mapping fails after it was unmapped instead of crashing,
+        // this doesn't cover the raw address accesses of MemoryAccess
+        Mapper mapper = new SegmentMapper();
+        try (FileChannel channel = FileChannel.open(new File(dir, "segment").toPath(), CREATE, READ, WRITE)) {
+            MappedByteBuffer mapping = mapper.map(channel, MapMode.READ_WRITE, 0, 1024);
+            mapping.putLong(0, 42);
+            mapper.unmap(mapping);
+            try {
+                mapping.getLong(0);
+                fail("mapping is unmapped");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void largeChunks() throws IOException {
+        checkLargeChunks(false);
+        cleanup();
+        prepare();
+        checkLargeChunks(true);
+    }
+
+    private void checkLargeChunks(boolean concurrent) throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        buffer.setConcurrent(concurrent);
+        ByteBuffer large = ByteBuffer.allocate(50000);
+        for (int i = 0; i < large.capacity(); i++) {
+            large.put(i, (byte) i);
+        }
+        for (long timestamp = 0; timestamp < 20; timestamp++) {
+            buffer.enqueue(timestamp == 10 ? large.duplicate() : chunk(timestamp, 50), timestamp);
+        }
+
+        ICursor cursor = buffer.openCursor("fragments");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] fragments = new int[2];
+        for (long timestamp = 0; timestamp < 20; timestamp++) {
+            out.reset();
+            fragments[0] = 0;
+            fragments[1] = 0;
+            long size = cursor.dequeueFragments((fragment, last) -> {
+                while (fragment.hasRemaining()) {
+                    out.write(fragment.get());
+                }
+                fragments[last ? 1 : 0]++;
+            });
+            assertEquals(1, fragments[1]);
+            if (timestamp == 10) {
+                assertEquals(large.capacity(), size);
+                assertTrue(fragments[0] > 5);
+                assertEquals(large, ByteBuffer.wrap(out.toByteArray()));
+            } else {
+                assertEquals(50, size);
+                assertEquals(timestamp, ByteBuffer.wrap(out.toByteArray()).getLong());
+            }
+        }
+        assertEquals(IBuffer.NO_DATA, cursor.dequeueFragments((fragment, last) -> fail("no more data")));
+        cursor.close();
+
+        // the other reads join the fragments
+        ICursor legacy = buffer.openCursor("legacy");
+        assertEquals(10, legacy.dequeue(10, chunk -> { }));
+        assertEquals(large, legacy.dequeue());
+        assertEquals(11, legacy.dequeueView().getLong());
+        legacy.setReadStart(0);
+        assertEquals(10, legacy.dequeue(10, chunk -> { }));
+        ByteBuffer target = ByteBuffer.allocate(large.capacity());
+        assertEquals(~large.capacity(), legacy.dequeue(ByteBuffer.allocate(100)));
+        assertEquals(large.capacity(), legacy.dequeue(target));
+        assertEquals(large, (ByteBuffer) target.flip());
+        assertEquals(9, legacy.dequeue(100, chunk -> { }));
+        legacy.close();
+        buffer.close();
+    }
+
+    @Test
+    public void parallelScan() throws IOException {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        for (long timestamp = 0; timestamp < 2000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, timestamp == 700 ? 30000 : 50), timestamp);
+        }
+
+        List<ByteBuffer> chunks;
+        try (Stream<ByteBuffer> scan = buffer.scan(500, 1499)) {
+            chunks = scan.collect(Collectors.toList());
+        }
+        // the range can start shortly before and end shortly after
+        long first = chunks.get(0).getLong(0);
+        long last = chunks.get(chunks.size() - 1).getLong(0);
+        assertTrue(first <= 500 && first > 400);
+        assertTrue(last >= 1499 && last < 1600);
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(first + i, chunks.get(i).getLong(0));
+        }
+        assertEquals(30000, chunks.get((int) (700 - first)).remaining());
+
+        assertEquals(2000, buffer.scan(Long.MIN_VALUE, Long.MAX_VALUE).count());
+        assertEquals(0, buffer.scan(3000, 4000).count());
+        buffer.close();
+
+        cleanup();
+        prepare();
+        buffer = createBuffer(1024 * 8, Compression.DEFLATE);
+        for (long timestamp = 0; timestamp < 2000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        // the chunks of the open block are not committed yet
+        final AtomicLong sum = new AtomicLong();
+        buffer.dequeue(2000, chunk -> sum.addAndGet(chunk.getLong(0)));
+        assertTrue(sum.get() > 1900L * 1901 / 2);
+        assertEquals(sum.get(), buffer.scan(Long.MIN_VALUE, Long.MAX_VALUE)
+                .mapToLong(chunk -> chunk.getLong(0)).sum());
+        buffer.close();
+    }
+
+    @Test
+    public void partitionedBuffer() throws IOException {
+        PartitionedBuffer buffer = new PartitionedBuffer();
+        buffer.setCacheDir(dir.getCanonicalPath());
+        buffer.setPartitions(4);
+        buffer.setFilesize(1024 * 8);
+        buffer.init();
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            ByteBuffer chunk = chunk(timestamp, 50);
+            chunk.putLong(8, timestamp % 10);
+            buffer.enqueue(timestamp % 10, chunk, timestamp);
+        }
+        assertTrue(new File(dir, "partition-3").isDirectory());
+
+        // every partition has its keys in order
+        int total = 0;
+        for (int partition = 0; partition < 4; partition++) {
+            final int current = partition;
+            final long[] previous = {-1};
+            total += buffer.getPartition(partition).dequeue(1000, chunk -> {
+                assertEquals(current, buffer.partition(chunk.getLong(8)));
+                assertTrue(chunk.getLong(0) > previous[0]);
+                previous[0] = chunk.getLong(0);
+            });
+        }
+        assertEquals(1000, total);
+
+        for (long timestamp = 1000; timestamp < 1100; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        final AtomicLong read = new AtomicLong();
+        assertEquals(100, buffer.dequeue(1000, chunk -> read.incrementAndGet()));
+        assertEquals(100, read.get());
+        assertEquals(1100, buffer.scan(Long.MIN_VALUE, Long.MAX_VALUE).count());
+        buffer.close();
+    }
+
+    @Test
+    public void mergeCursor() throws IOException {
+        PartitionedBuffer buffer = new PartitionedBuffer();
+        buffer.setCacheDir(dir.getCanonicalPath());
+        buffer.setPartitions(3);
+        buffer.setFilesize(1024 * 8);
+        buffer.init();
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            // runs of different length in the partitions
+            buffer.enqueue(timestamp / 7 + timestamp % 3, chunk(timestamp, 50), timestamp);
+        }
+
+        List<ICursor> cursors = new ArrayList<>();
+        for (int partition = 0; partition < 3; partition++) {
+            cursors.add(buffer.getPartition(partition).openCursor("merge"));
+        }
+        // the chunks are views of the pages
+        MergeCursor merge = new MergeCursor(cursors, chunk -> chunk.getLong(chunk.position()));
+        final long[] expected = {0};
+        assertEquals(500, merge.dequeue(500, chunk -> {
+            assertEquals(expected[0]++, chunk.getLong(chunk.position()));
+        }));
+        // the named cursors continue after the last returned chunk
+        merge.close();
+        cursors.clear();
+        for (int partition = 0; partition < 3; partition++) {
+            cursors.add(buffer.getPartition(partition).openCursor("merge"));
+        }
+        merge = new MergeCursor(cursors, chunk -> chunk.getLong(chunk.position()));
+        assertEquals(500, merge.dequeue(2000, chunk -> {
+            assertEquals(expected[0]++, chunk.getLong(chunk.position()));
+        }));
+        assertEquals(999, merge.getTimestamp());
+        assertEquals(0, merge.dequeueView().remaining());
+
+        // a source without data holds back the others
+        buffer.enqueue(0, chunk(1000, 50), 1000);
+        merge.setWaitForAll(true);
+        assertEquals(0, merge.dequeueView().remaining());
+        merge.setWaitForAll(false);
+        ByteBuffer chunk = merge.dequeueView();
+        assertEquals(1000, chunk.getLong(chunk.position()));
+        assertEquals(buffer.partition(0), merge.getSource());
+        merge.close();
+        buffer.close();
+    }
+
+    @Test
+    public void asyncBuffer() throws Exception {
+        BufferImpl buffer = createBuffer(1024 * 8);
+        AsyncBuffer async = new AsyncBuffer(buffer);
+        async.setPollIntervalMillis(1);
+
+        // the waiting reader is served when the writer enqueues, but not in the writer thread
+        CompletableFuture<ByteBuffer> first = async.dequeueAsync();
+        CompletableFuture<Thread> completer = first.thenApply(chunk -> Thread.currentThread());
+        CompletableFuture<ByteBuffer> second = async.dequeueAsync();
+        assertTrue(!first.isDone());
+        async.enqueueAsync(chunk(0, 50), 0).get(1, TimeUnit.SECONDS);
+        assertEquals(0, first.get(1, TimeUnit.SECONDS).getLong());
+        assertTrue(completer.get(1, TimeUnit.SECONDS) != Thread.currentThread());
+        assertTrue(!second.isDone());
+        // and by the poller for chunks that were written around the facade
+        buffer.enqueue(chunk(1, 50), 1);
+        assertEquals(1, second.get(1, TimeUnit.SECONDS).getLong());
+        // a cancelled reader doesn't take a chunk
+        async.dequeueAsync().cancel(false);
+        CompletableFuture<ByteBuffer> third = async.dequeueAsync();
+        async.enqueueAsync(chunk(2, 50), 2, true).get(1, TimeUnit.SECONDS);
+        assertEquals(2, third.get(1, TimeUnit.SECONDS).getLong());
+        // the poller stops without waiting readers
+        awaitPolling(async, false);
+
+        // the subscriber only gets what it requested
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong last = new AtomicLong(-1);
+        ISubscription subscription = async.subscribe(buffer.openCursor("subscriber"), chunk -> {
+            received.incrementAndGet();
+            last.set(chunk.getLong(chunk.position()));
+        }, ex -> fail(ex.toString()));
+        for (long timestamp = 3; timestamp < 20; timestamp++) {
+            async.enqueueAsync(chunk(timestamp, 50), timestamp);
+        }
+        assertEquals(0, received.get());
+        subscription.request(5);
+        awaitCount(received, 5);
+        assertEquals(4, last.get());
+        subscription.request(100);
+        assertTrue(async.isPolling());
+        awaitCount(received, 20);
+        async.enqueueAsync(chunk(20, 50), 20);
+        awaitCount(received, 21);
+        subscription.cancel();
+        async.enqueueAsync(chunk(21, 50), 21);
+        assertEquals(21, received.get());
+        awaitPolling(async, false);
+
+        assertEquals(3, async.dequeueAsync().get(1, TimeUnit.SECONDS).getLong());
+        async.close();
+        try {
+            async.dequeueAsync().get(1, TimeUnit.SECONDS);
+            fail("the facade is closed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CacheException);
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getCanonicalPath());
+        pageFactory.setFilesize(1024 * 8);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandlers.add(pageHandler);
+        BufferMetrics metrics = new BufferMetrics();
+        pageHandler.setMetrics(metrics);
+        pageHandler.init();
+        BufferImpl buffer = new BufferImpl();
+        buffer.setPageHandler(pageHandler);
+        buffer.setMetrics(metrics);
+
+        ICursor cursor = buffer.openCursor("lagging");
+        for (long timestamp = 0; timestamp < 1000; timestamp++) {
+            buffer.enqueue(chunk(timestamp, 50), timestamp);
+        }
+        assertEquals(50, buffer.dequeue().remaining());
+        assertEquals(1000, metrics.getEnqueuedChunks());
+        assertEquals(1000 * 50, metrics.getEnqueuedBytes());
+        assertEquals(1, metrics.getDequeuedChunks());
+        // every rollover created a page, only the closed pages are forced
+        int pages = pageHandler.getPages(Long.MIN_VALUE, Long.MAX_VALUE).size();
+        assertTrue("no rollover", pages > 1);
+        assertTrue(metrics.getCreatedPages() >= pages);
+        assertTrue(metrics.getForceCount() <= metrics.getCreatedPages());
+        assertTrue(metrics.getForceCount() >= pages - 1);
+        // the cursor hasn't read any page yet
+        int lag = metrics.getConsumerLag("lagging");
+        assertTrue(lag > 0);
+        assertTrue(lag <= metrics.getCreatedPages());
+        cursor.dequeue();
+        assertTrue(metrics.getConsumerLag("lagging") < lag);
+        cursor.close();
+        assertEquals(-1, metrics.getConsumerLag("lagging"));
+
+        metrics.register("test");
+        try {
+            ObjectName name = new ObjectName("net.wohlfart.filebuffer:type=BufferMetrics,name=\"test\"");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1000L, server.getAttribute(name, "EnqueuedChunks"));
+            assertTrue((Long) server.getAttribute(name, "MappedBytes") > 0);
+        } finally {
+            metrics.unregister();
+        }
+        buffer.close();
+    }
+
+    // the poller can be the thread that passes the chunks
+    private void awaitCount(AtomicLong count, long expected) throws InterruptedException {
+        for (int i = 0; i < 1000 && count.get() < expected; i++) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, count.get());
+    }
+
+    private void awaitPolling(AsyncBuffer async, boolean expected) throws InterruptedException {
+        for (int i = 0; i < 1000 && async.isPolling() != expected; i++) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, async.isPolling());
+    }
+
+    private BufferImpl createBuffer(int filesize) throws IOException {
+        return createBuffer(filesize, Compression.NONE);
+    }
+
+    private BufferImpl createBuffer(int filesize, Compression compression) throws IOException {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getCanonicalPath());
+        pageFactory.setFilesize(filesize);
+        pageFactory.setCompression(compression);
+        pageFactory.setBlockSize(1024);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandlers.add(pageHandler);
+        pageHandler.init();
+        BufferImpl buffer = new BufferImpl();
+        buffer.setPageHandler(pageHandler);
+        return buffer;
+    }
+
+    private ByteBuffer chunk(long timestamp, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(0, timestamp);
+        return buffer;
+    }
+
     /*
     @Test @Ignore
     public void smokeTest() throws IOException {
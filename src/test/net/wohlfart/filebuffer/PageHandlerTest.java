@@ -5,9 +5,19 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class PageHandlerTest {
@@ -29,6 +39,9 @@ public class PageHandlerTest {
     public void cleanup() {
         if (dir != null) {
             try {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
                 dir.delete();
             } catch (Exception ex) {
                 // ignore
@@ -36,6 +49,482 @@ public class PageHandlerTest {
         }
     }
 
+    @Test
+    public void readPageSeek() {
+        PageHandler pageHandler = createPageHandler();
+        IPage writer = pageHandler.getWritePage(0);
+        for (long timestamp = 0; timestamp < 500; timestamp++) {
+            writer.write(chunk(timestamp, 100), timestamp);
+        }
+        pageHandler.closeWritePage(writer);
+
+        // the read starts at the timestamp or shortly before
+        IPage reader = pageHandler.getReadPage(250);
+        long first = reader.read().getLong();
+        assertTrue("started after the timestamp: " + first, first <= 250);
+        assertTrue("started too early: " + first, first > 200);
+        long next = first + 1;
+        while (!reader.isReadComplete()) {
+            assertEquals(next++, reader.read().getLong());
+        }
+        assertEquals(500, next);
+        pageHandler.closeReadPage(reader);
+    }
+
+    @Test
+    public void nextReadPage() {
+        PageHandler pageHandler = createPageHandler();
+        IPage writer = pageHandler.getWritePage(10);
+        writer.write(chunk(10, 100), 10);
+        pageHandler.closeWritePage(writer);
+        writer = pageHandler.getWritePage(20);
+        writer.write(chunk(20, 100), 20);
+        pageHandler.closeWritePage(writer);
+
+        IPage reader = pageHandler.getReadPage(15);
+        assertEquals(10, reader.read().getLong());
+        assertTrue(reader.isReadComplete());
+        IPage next = pageHandler.getNextReadPage(reader);
+        pageHandler.closeReadPage(reader);
+        assertEquals(20, next.read().getLong());
+        assertNull(pageHandler.getNextReadPage(next));
+        pageHandler.closeReadPage(next);
+
+        // a new handler finds the pages in the directory
+        pageHandler = createPageHandler();
+        reader = pageHandler.getReadPage(25);
+        assertEquals(20, reader.read().getLong());
+        pageHandler.closeReadPage(reader);
+    }
+
+    @Test
+    public void sparePages() throws InterruptedException {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 64);
+        pageFactory.setPoolSize(2);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        for (long timestamp = 0; timestamp < 10; timestamp++) {
+            IPage writer = pageHandler.getWritePage(timestamp);
+            writer.write(chunk(timestamp, 100), timestamp);
+            pageHandler.closeWritePage(writer);
+        }
+
+        // the preparer fills the pool in the background, spare files are not pages
+        File[] spareFiles = new File[0];
+        for (int i = 0; i < 100 && spareFiles.length < 2; i++) {
+            Thread.sleep(10);
+            spareFiles = dir.listFiles((file, name) -> name.endsWith(".spare"));
+        }
+        assertEquals(2, spareFiles.length);
+        assertEquals(2 * 1024 * 64, pageFactory.getSpareSize());
+        // closing the handler removes the spare files
+        pageHandler.close();
+        assertEquals(0, dir.listFiles((file, name) -> name.endsWith(".spare")).length);
+        pageHandler = createPageHandler();
+        for (long timestamp = 0; timestamp < 10; timestamp++) {
+            IPage reader = pageHandler.getReadPage(timestamp + 1);
+            assertEquals(timestamp, reader.read().getLong());
+            pageHandler.closeReadPage(reader);
+        }
+        pageHandler.close();
+
+        // closing while the preparer is still filling the pool waits for it
+        pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 1024 * 4);
+        pageFactory.setPoolSize(2);
+        pageFactory.create(100).createWriteBuffer();
+        pageFactory.close();
+        Thread.sleep(100);
+        assertEquals(0, dir.listFiles((file, name) -> name.endsWith(".spare")).length);
+    }
+
+    @Test
+    public void pageCatalog() throws IOException {
+        PageHandler pageHandler = createPageHandler();
+        for (long timestamp = 0; timestamp < 3; timestamp++) {
+            IPage writer = pageHandler.getWritePage(timestamp * 10);
+            writer.write(chunk(timestamp * 10, 100), timestamp * 10 + 5);
+            pageHandler.closeWritePage(writer);
+        }
+        File catalog = new File(dir, PageCatalog.CATALOG_FILENAME);
+        assertEquals(3 * PageCatalog.RECORD_SIZE, catalog.length());
+
+        // a torn record at the end is ignored
+        try (FileOutputStream out = new FileOutputStream(catalog, true)) {
+            out.write(new byte[PageCatalog.RECORD_SIZE]);
+        }
+        pageHandler = createPageHandler();
+        assertEquals(3 * PageCatalog.RECORD_SIZE, catalog.length());
+        IPage reader = pageHandler.getReadPage(21);
+        assertEquals(25, reader.getLastTimestamp());
+        assertEquals(20, reader.read().getLong());
+        pageHandler.closeReadPage(reader);
+
+        // a broken catalog is rebuilt from the page headers
+        try (RandomAccessFile file = new RandomAccessFile(catalog, "rw")) {
+            file.seek(PageCatalog.RECORD_SIZE / 2);
+            file.write(0xff);
+        }
+        pageHandler = createPageHandler();
+        reader = pageHandler.getReadPage(11);
+        assertEquals(15, reader.getLastTimestamp());
+        assertEquals(10, reader.read().getLong());
+        pageHandler.closeReadPage(reader);
+    }
+
+    @Test
+    public void retention() {
+        PageHandler pageHandler = createPageHandler();
+        for (long timestamp = 0; timestamp < 10; timestamp++) {
+            IPage writer = pageHandler.getWritePage(timestamp);
+            writer.write(chunk(timestamp, 100), timestamp);
+            pageHandler.closeWritePage(writer);
+        }
+        pageHandler.registerConsumer("slow");
+        pageHandler.registerConsumer("fast");
+        pageHandler.getWritePage(10);
+
+        // the disk budget keeps the last 8 pages, the write page is never evicted
+        pageHandler.setMaxDiskSize(8 * 1024 * 64);
+        assertEquals(3, pageHandler.evict());
+        assertEquals(8, pageFiles().length);
+        IPage reader = pageHandler.getReadPage(0);
+        assertEquals(3, reader.read().getLong());
+        pageHandler.closeReadPage(reader);
+
+        // consumed pages are evicted when all consumers moved past them
+        pageHandler.setEvictConsumed(true);
+        reader = pageHandler.getReadPage(7);
+        pageHandler.acknowledge("fast", reader);
+        pageHandler.closeReadPage(reader);
+        assertEquals(0, pageHandler.evict());
+        reader = pageHandler.getReadPage(6);
+        pageHandler.acknowledge("slow", reader);
+        pageHandler.closeReadPage(reader);
+        assertEquals(2, pageHandler.evict());
+        assertEquals(6, pageFiles().length);
+
+        // old pages are evicted by age
+        pageHandler.setMaxAgeMillis(1000);
+        assertEquals(5, pageHandler.evict());
+        assertEquals(1, pageFiles().length);
+        pageHandler.close();
+    }
+
+    @Test
+    public void evictWhileReading() {
+        PageHandler pageHandler = createPageHandler();
+        for (long timestamp = 0; timestamp < 4; timestamp++) {
+            IPage writer = pageHandler.getWritePage(timestamp * 10);
+            for (long i = 0; i < 10; i++) {
+                writer.write(chunk(timestamp * 10 + i, 100), timestamp * 10 + i);
+            }
+            pageHandler.closeWritePage(writer);
+        }
+        pageHandler.getWritePage(40);
+
+        // the cursor pins its page, the file is deleted when the cursor leaves it
+        ICursor cursor = pageHandler.openCursor("pinned");
+        for (long timestamp = 0; timestamp < 5; timestamp++) {
+            assertEquals(timestamp, cursor.dequeue().getLong());
+        }
+        pageHandler.setMaxDiskSize(2 * 1024 * 64);
+        assertEquals(3, pageHandler.evict());
+        assertEquals(3, pageFiles().length);
+        for (long timestamp = 5; timestamp < 10; timestamp++) {
+            assertEquals(timestamp, cursor.dequeue().getLong());
+        }
+        assertEquals(30, cursor.dequeue().getLong());
+        assertEquals(2, pageFiles().length);
+
+        // the positions are unmapped with the handler, a cursor left open can't store anymore
+        pageHandler.close();
+        try {
+            cursor.dequeue();
+            fail("the offsets are closed");
+        } catch (CacheException ex) {
+            // expected
+        }
+        cursor.close();
+        pageHandler = createPageHandler();
+        cursor = pageHandler.openCursor("pinned");
+        assertEquals(31, cursor.dequeue().getLong());
+        cursor.close();
+        pageHandler.close();
+    }
+
+    @Test
+    public void segmentedPages() {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 64);
+        pageFactory.setSegmentsPerFile(4);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        for (long timestamp = 0; timestamp < 10; timestamp++) {
+            IPage writer = pageHandler.getWritePage(timestamp);
+            writer.write(chunk(timestamp, 100), timestamp);
+            pageHandler.closeWritePage(writer);
+        }
+        assertEquals(3, pageFiles().length);
+        assertEquals(4 * 1024 * 64, new File(dir, "0").length());
+
+        // the segments are found with and without the catalog
+        for (int i = 0; i < 2; i++) {
+            pageHandler = createPageHandler();
+            for (long timestamp = 0; timestamp < 10; timestamp++) {
+                IPage reader = pageHandler.getReadPage(timestamp + 1);
+                assertEquals(timestamp, reader.read().getLong());
+                pageHandler.closeReadPage(reader);
+            }
+            new File(dir, PageCatalog.CATALOG_FILENAME).delete();
+        }
+
+        // without the catalog the segment size is read from the header, not the configuration
+        pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 8);
+        pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        for (long timestamp = 0; timestamp < 10; timestamp++) {
+            IPage reader = pageHandler.getReadPage(timestamp + 1);
+            assertEquals(timestamp, reader.read().getLong());
+            pageHandler.closeReadPage(reader);
+        }
+        pageHandler.close();
+        pageHandler = createPageHandler();
+
+        // a file is deleted with its last segment, the new write page is a file of its own
+        pageHandler.getWritePage(10);
+        assertEquals(4, pageFiles().length);
+        pageHandler.setMaxDiskSize(7 * 1024 * 64);
+        assertEquals(4, pageHandler.evict());
+        assertEquals(3, pageFiles().length);
+        pageHandler.setMaxDiskSize(6 * 1024 * 64);
+        assertEquals(1, pageHandler.evict());
+        assertEquals(3, pageFiles().length);
+    }
+
+    @Test
+    public void recovery() throws IOException {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 64);
+        pageFactory.setChecksums(true);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        IPage writer = pageHandler.getWritePage(0);
+        for (long timestamp = 0; timestamp < 4; timestamp++) {
+            writer.write(chunk(timestamp, 100), timestamp);
+        }
+        // the page is never closed and the payload of the third chunk is torn
+        int third = PageMetadata.dataOffset(1024 * 64) + 2 * (8 + 100);
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "0"), "rw")) {
+            file.seek(third + 8 + 50);
+            file.write(0xff);
+        }
+
+        pageHandler = createPageHandler();
+        IPage reader = pageHandler.getReadPage(1);
+        assertEquals(0, reader.read().getLong());
+        ByteBuffer chunk = reader.read();
+        assertEquals(100, chunk.remaining());
+        assertEquals(1, chunk.getLong());
+        assertTrue(reader.isReadComplete());
+        assertEquals(third, reader.getLimit());
+        pageHandler.closeReadPage(reader);
+
+        // the torn chunk and the chunk after it are cleared behind the end marker
+        byte[] rest = new byte[1024 * 64 - third - 4];
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "0"), "r")) {
+            file.seek(third + 4);
+            file.readFully(rest);
+        }
+        assertEquals(ByteBuffer.allocate(rest.length), ByteBuffer.wrap(rest));
+
+        // a recovered page is catalogued with its flags and not checked again
+        PageCatalog.Entry entry = new PageCatalog(dir).load().get(0);
+        assertEquals(PageMetadata.FLAG_CHECKSUM, entry.flags & PageMetadata.FLAG_CHECKSUM);
+        pageHandler = createPageHandler();
+        reader = pageHandler.getReadPage(1);
+        assertEquals(third, reader.getLimit());
+        pageHandler.closeReadPage(reader);
+    }
+
+    @Test
+    public void mappedRegionCache() {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 64);
+        pageFactory.setReadCacheSize(2 * 1024 * 64);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        IPage[] pages = new IPage[4];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = pageHandler.getWritePage(i * 10);
+            pages[i].write(chunk(i * 10, 100), i * 10);
+            pages[i].write(chunk(i * 10 + 1, 100), i * 10 + 1);
+            pageHandler.closeWritePage(pages[i]);
+        }
+        MappedRegionCache cache = pageFactory.getRegionCache();
+
+        // views of the same page share the mapping but not the position
+        ByteBuffer first = pages[0].createReadView(Long.MIN_VALUE);
+        ByteBuffer second = pages[0].createReadView(Long.MIN_VALUE);
+        ByteBuffer target = ByteBuffer.allocate(100);
+        assertEquals(100, pages[0].read(first, target));
+        assertEquals(0, target.getLong(0));
+        target.clear();
+        assertEquals(100, pages[0].read(first, target));
+        assertEquals(1, target.getLong(0));
+        target.clear();
+        assertEquals(100, pages[0].read(second, target));
+        assertEquals(0, target.getLong(0));
+        assertEquals(1, cache.size());
+        pages[0].closeReadView(first);
+        pages[0].closeReadView(second);
+
+        // the least recently used mapping without views is unmapped
+        ByteBuffer view = pages[1].createReadView(Long.MIN_VALUE);
+        pages[1].closeReadView(view);
+        view = pages[0].createReadView(Long.MIN_VALUE);
+        pages[0].closeReadView(view);
+        view = pages[2].createReadView(Long.MIN_VALUE);
+        assertEquals(2, cache.size());
+        assertEquals(2 * 1024 * 64, cache.getMappedBytes());
+
+        // mappings with views are kept over the budget
+        ByteBuffer other = pages[3].createReadView(Long.MIN_VALUE);
+        ByteBuffer oldest = pages[1].createReadView(Long.MIN_VALUE);
+        assertEquals(3, cache.size());
+        target.clear();
+        pages[2].read(view, target);
+        assertEquals(20, target.getLong(0));
+        target.clear();
+        pages[3].read(other, target);
+        assertEquals(30, target.getLong(0));
+        pages[1].closeReadView(oldest);
+        pages[2].closeReadView(view);
+        pages[3].closeReadView(other);
+        assertEquals(2, cache.size());
+
+        // a mapping that handed out a chunk is retired instead of unmapped, it stays in the
+        // budget and the next reader of the page gets it back instead of a second mapping
+        view = pages[3].createReadView(Long.MIN_VALUE);
+        ByteBuffer kept = pages[3].read(view);
+        pages[3].closeReadView(view);
+        first = pages[0].createReadView(Long.MIN_VALUE);
+        second = pages[1].createReadView(Long.MIN_VALUE);
+        assertEquals(3, cache.size());
+        assertEquals(3 * 1024 * 64, cache.getMappedBytes());
+        view = pages[3].createReadView(Long.MIN_VALUE);
+        assertEquals(3, cache.size());
+        assertEquals(3 * 1024 * 64, cache.getMappedBytes());
+        pages[3].closeReadView(view);
+        pages[0].closeReadView(first);
+        pages[1].closeReadView(second);
+
+        // a deleted page is unmapped, the retired mapping stays until it is collected
+        pageHandler.setMaxDiskSize(3 * 1024 * 64);
+        assertEquals(1, pageHandler.evict());
+        pageFactory.close();
+        assertEquals(1, cache.size());
+        assertEquals(30, kept.getLong(0));
+    }
+
+    @Test
+    public void readViewUnmap() throws IOException, InterruptedException {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 64);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        PageImpl page = (PageImpl) pageHandler.getWritePage(0);
+        page.write(chunk(0, 100), 0);
+        page.write(chunk(1, 100), 1);
+        pageHandler.closeWritePage(page);
+        final AtomicInteger unmapped = new AtomicInteger();
+        page.setMapper(new Mapper() {
+            @Override
+            MappedByteBuffer map(FileChannel channel, MapMode mode, long offset, int size) throws IOException {
+                return Mapper.BUFFERS.map(channel, mode, offset, size);
+            }
+
+            @Override
+            void force(MappedByteBuffer buffer) {
+                Mapper.BUFFERS.force(buffer);
+            }
+
+            @Override
+            void unmap(ByteBuffer buffer) {
+                unmapped.incrementAndGet();
+                Mapper.BUFFERS.unmap(buffer);
+            }
+        });
+
+        // a view that was only copied from is unmapped with the view
+        ByteBuffer view = page.createReadView(Long.MIN_VALUE);
+        ByteBuffer target = ByteBuffer.allocate(100);
+        assertEquals(100, page.read(view, target));
+        page.closeReadView(view);
+        assertEquals(1, unmapped.get());
+
+        // a mapping that handed out a chunk is kept with the chunk and reused
+        view = page.createReadView(Long.MIN_VALUE);
+        ByteBuffer kept = page.read(view);
+        page.closeReadView(view);
+        view = page.createReadView(Long.MIN_VALUE);
+        target.clear();
+        page.read(view, target);
+        page.closeReadView(view);
+        assertEquals(1, unmapped.get());
+        assertEquals(0, kept.getLong(0));
+
+        // the collector unmaps it with the chunk, a new mapping is unmapped again
+        kept = null;
+        view = null;
+        for (int i = 0; i < 100 && pageFactory.getRegionCache().getMappedBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, pageFactory.getRegionCache().getMappedBytes());
+        view = page.createReadView(Long.MIN_VALUE);
+        target.clear();
+        page.read(view, target);
+        page.closeReadView(view);
+        assertEquals(2, unmapped.get());
+        pageHandler.close();
+    }
+
+    private File[] pageFiles() {
+        return dir.listFiles((file, name) -> name.matches("[0-9]+"));
+    }
+
+    private PageHandler createPageHandler() {
+        PageFactory pageFactory = new PageFactory();
+        pageFactory.setCacheDir(dir.getAbsolutePath());
+        pageFactory.setFilesize(1024 * 64);
+        PageHandler pageHandler = new PageHandler();
+        pageHandler.setPageFactory(pageFactory);
+        pageHandler.init();
+        return pageHandler;
+    }
+
+    private ByteBuffer chunk(long timestamp, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(0, timestamp);
+        return buffer;
+    }
+
     /*
 
     @Test
@@ -2,6 +2,7 @@ package net.wohlfart.filebuffer;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
@@ -39,14 +40,15 @@ public class SinglePageTest {
 
 	@Test
     public void smokeTest() throws IOException {
-        IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 70);
+        IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 72);
         write.createWriteBuffer();
         write.write(bb("blablablabla23"));
-        assertEquals(70 - (PageImpl.INT_SIZE + PageImpl.INT_SIZE)
-        		        - ("blablablabla23".getBytes().length + PageImpl.INT_SIZE), write.remainingForWrite());
+        // the record of 18 bytes is padded to 20
+        assertEquals(72 - (PageImpl.INT_SIZE + PageImpl.INT_SIZE)
+        		        - ("blablablabla23".getBytes().length + PageImpl.INT_SIZE + 2), write.remainingForWrite());
         write.closeWriteBuffer();
 
-        IPage read = new PageImpl(file, PageMetadata.METADATA_SIZE + 70);
+        IPage read = new PageImpl(file, PageMetadata.METADATA_SIZE + 72);
         read.openReadBuffer();
         assertBufferEquals(bb("blablablabla23"), read.read());
         read.closeReadBuffer();
@@ -54,18 +56,19 @@ public class SinglePageTest {
 
 	@Test
     public void doubleWrite() throws IOException {
-    	IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 70);
+    	IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 72);
     	write.createWriteBuffer();
         write.write(bb("test1data"));
-        assertEquals(70 - (PageImpl.INT_SIZE + PageImpl.INT_SIZE)
-		        	    - ("test1data".getBytes().length + PageImpl.INT_SIZE), write.remainingForWrite());
+        // the records are padded to a multiple of four
+        assertEquals(72 - (PageImpl.INT_SIZE + PageImpl.INT_SIZE)
+		        	    - ("test1data".getBytes().length + PageImpl.INT_SIZE + 3), write.remainingForWrite());
         write.write(bb("2"));
-        assertEquals(70 - (PageImpl.INT_SIZE + PageImpl.INT_SIZE)
-		         - ("test1data".getBytes().length + PageImpl.INT_SIZE)
-        		 - ("2".getBytes().length + PageImpl.INT_SIZE), write.remainingForWrite());
+        assertEquals(72 - (PageImpl.INT_SIZE + PageImpl.INT_SIZE)
+		         - ("test1data".getBytes().length + PageImpl.INT_SIZE + 3)
+        		 - ("2".getBytes().length + PageImpl.INT_SIZE + 3), write.remainingForWrite());
         write.closeWriteBuffer();
 
-        IPage read = new PageImpl(file, PageMetadata.METADATA_SIZE + 70);
+        IPage read = new PageImpl(file, PageMetadata.METADATA_SIZE + 72);
         read.openReadBuffer();
         assertBufferEquals(bb("test1data"), read.read());
         assertBufferEquals(bb("2"), read.read());
@@ -196,13 +199,13 @@ public class SinglePageTest {
         // stuff in the file:
         // 8 byte index, 4 byte limit, (not part of the payload)
         // 4 byte chunksize, 4 byte EOF
-    	IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 19); 
+    	IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 20); 
     	write.createWriteBuffer();
         ByteBuffer param = bb("12345678901234567890");  // 20 
         write.write(param);
         assertEquals(20, param.remaining());
 
-        // 35 minus HEADER_SIZE (16) --> we have 19 to write
+        // 20 minus 4 for the size and 4 for the EOF marker --> we have 12 to write
         String string = "1234567890123456789";
         param = bb(string);
         write.write(param);
@@ -227,7 +230,7 @@ public class SinglePageTest {
         assertEquals(s.toCharArray().length, param.remaining());
 
         // check if we can read the stuff again
-        IPage read = new PageImpl(file, PageMetadata.METADATA_SIZE + 19); 
+        IPage read = new PageImpl(file, PageMetadata.METADATA_SIZE + 20); 
         read.openReadBuffer();
         assertBufferEquals(bb(string), read.read());
               
@@ -243,20 +246,20 @@ public class SinglePageTest {
     public void checkUnderflow() throws IOException {
         ByteBuffer param;
 
-        IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 20);
+        IPage write = new PageImpl(file, PageMetadata.METADATA_SIZE + 32);
         write.createWriteBuffer();
         
         write.write(param = bb("1"));
-        assertEquals(0, param.remaining());  // 15 = 20 - (4+1)
+        assertEquals(0, param.remaining());  // 24 = 32 - (4+1 padded to 8)
         
         write.write(param = bb("2"));
-        assertEquals(0, param.remaining());  // 10 = 15 - (4+1)
+        assertEquals(0, param.remaining());  // 16 = 24 - 8
 
         write.write(param = bb("3"));
-        assertEquals(0, param.remaining());  // 5 = 10 - (4+1)
+        assertEquals(0, param.remaining());  // 8 = 16 - 8
 
         write.write(param = bb("4"));
-        assertEquals(1, param.remaining());  // 5 left but we need 4 for the EOF --> full
+        assertEquals(1, param.remaining());  // 8 left but we need 4 for the EOF --> full
 
         write.write(param = bb("5"));
         assertEquals(1, param.remaining());
@@ -287,6 +290,31 @@ public class SinglePageTest {
         }
     }
 
+    @Test
+    public void closeWhileOffering() throws IOException, InterruptedException {
+        assertTrue(Unmapper.mechanism() != Unmapper.Mechanism.GARBAGE_COLLECTOR);
+        for (int round = 0; round < 20; round++) {
+            final PageImpl page = new PageImpl(file, 1024 * 64);
+            page.createWriteBuffer();
+            Thread[] writers = new Thread[4];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new Thread(() -> {
+                    // the page is unmapped while we offer, we must not touch it afterwards
+                    while (page.offer(bb("abc"), 0)) {
+                        page.getLimit();
+                    }
+                });
+                writers[i].start();
+            }
+            page.closeWriteBuffer(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertEquals(page.getLimit(), new PageImpl(file, 1024 * 64).getLimit());
+            file.delete();
+        }
+    }
+
     @Test
     public void concurrentReadWrite() throws IOException, InterruptedException {
     	
@@ -322,6 +350,69 @@ public class SinglePageTest {
         assertEquals(content, reader.result.toString());
     }
 
+    @Test
+    public void alignedRecords() throws IOException {
+        PageImpl page = new PageImpl(file, 1024);
+        page.setChecksums(true);
+        page.createWriteBuffer();
+        for (int size = 1; size < 10; size++) {
+            page.offer(ByteBuffer.allocate(size), size);
+            page.offer(new ByteBuffer[] {ByteBuffer.allocate(size), ByteBuffer.allocate(size + 1)},
+                    new long[] {size, size}, 0, 2);
+        }
+        page.closeWriteBuffer();
+
+        // every size word starts at a multiple of four
+        ByteBuffer view = page.createReadView(Long.MIN_VALUE);
+        ByteBuffer chunkView = view.duplicate();
+        int count = 0;
+        while (true) {
+            assertEquals(0, view.position() % PageImpl.INT_SIZE);
+            if (page.nextChunk(view, chunkView) == IBuffer.NO_DATA) {
+                break;
+            }
+            count++;
+        }
+        assertEquals(3 * 9, count);
+        assertEquals(0, PageMetadata.getLimit(view) % PageImpl.INT_SIZE);
+        page.closeReadView(view);
+    }
+
+    @Test
+    public void singleWriterReadWrite() throws IOException, InterruptedException {
+
+    	PageImpl page = new PageImpl(file, 1024);
+    	page.setSingleWriter(true);
+
+        WriterThread writer = new WriterThread("xyz:", 100, page);
+        page.createWriteBuffer();
+        ReaderThread reader = new ReaderThread(page);
+
+        reader.start();
+        writer.start();
+        writer.join();
+        reader.writerrunning = false;
+        reader.join();
+        page.closeWriteBuffer();
+
+    	IPage read = new PageImpl(file, 1024);
+        read.openReadBuffer();
+        String content = "";
+        String incoming = "";
+        do {
+        	incoming = str(read.read());
+        	content += incoming;
+        } while (incoming.length() > 0);
+        read.closeReadBuffer();
+
+        String[] c = content.split(":");
+        assertEquals(100, c.length);
+        for (String s : c) {
+            assertEquals("xyz", s);
+        }
+        assertEquals(content, reader.result.toString());
+    }
+
 	@Test
     public void fanOutRead() throws IOException, InterruptedException {
 		